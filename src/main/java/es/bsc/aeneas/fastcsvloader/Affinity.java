@@ -0,0 +1,177 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Pins the loader threads to CPUs, Linux only.
+ * <p/>
+ * Java doesn't expose the thread affinity, so the thread id is read from
+ * {@code /proc/thread-self} and the mask is set with {@code taskset}. The
+ * NUMA layout comes from {@code /sys/devices/system/node}.
+ * <p/>
+ * Configuration:
+ * <ul>
+ * <li>affinity.node: NUMA node of the reader and of the consumers</li>
+ * <li>affinity.reader: CPU of the reader thread, by default the first CPU of the node</li>
+ * <li>affinity.consumers: CPU list of the consumers, by default the other CPUs of the node</li>
+ * </ul>
+ * The pages of the mapped file are faulted in by the reader, so with the
+ * reader pinned they are allocated on its node.
+ */
+public class Affinity {
+    private final static Logger log = LoggerFactory.getLogger(Affinity.class);
+    private final static File NODES = new File("/sys/devices/system/node");
+
+    public final int[] readerCpus;
+    public final int[] consumerCpus;
+
+    Affinity(int[] readerCpus, int[] consumerCpus) {
+        this.readerCpus = readerCpus;
+        this.consumerCpus = consumerCpus;
+    }
+
+    /**
+     * @return the layout configured with the system properties, null if no
+     * affinity has been requested or the NUMA node is not available
+     */
+    public static Affinity fromProperties() throws IOException {
+        String node = System.getProperty("affinity.node");
+        String reader = System.getProperty("affinity.reader");
+        String consumers = System.getProperty("affinity.consumers");
+        if (node == null && reader == null && consumers == null)
+            return null;
+        int[] nodeCpus = node == null ? null : availableCpusOfNode(Integer.parseInt(node));
+        int[] readerCpus;
+        if (reader != null)
+            readerCpus = parseCpuList(reader);
+        else if (nodeCpus != null)
+            readerCpus = new int[]{nodeCpus[0]};
+        else
+            readerCpus = null;
+        int[] consumerCpus;
+        if (consumers != null)
+            consumerCpus = parseCpuList(consumers);
+        else if (nodeCpus != null)
+            consumerCpus = nodeCpus.length > 1 ? without(nodeCpus, readerCpus) : nodeCpus;
+        else
+            consumerCpus = null;
+        if (readerCpus == null && consumerCpus == null)
+            return null;
+        return new Affinity(readerCpus, consumerCpus);
+    }
+
+    /**
+     * @return the CPUs of the node, null if it is not found: as any other
+     * pinning failure, the load goes on with its threads not pinned
+     */
+    private static int[] availableCpusOfNode(int node) {
+        try {
+            return cpusOfNode(node);
+        } catch (IllegalArgumentException | IOException e) {
+            log.warn("Impossible to pin the threads to NUMA node {}: {}", node, e.getMessage());
+            return null;
+        }
+    }
+
+    public static int[] cpusOfNode(int node) throws IOException {
+        File cpulist = new File(NODES, "node" + node + File.separator + "cpulist");
+        checkArgument(cpulist.exists(), "NUMA node %s not found", node);
+        return parseCpuList(Files.toString(cpulist, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Parses the kernel CPU list format, e.g. "0-3,8,10-11", as read from sysfs with its newline
+     */
+    static int[] parseCpuList(String list) {
+        List<Integer> cpus = new ArrayList<>();
+        for (String range : list.trim().split(",")) {
+            range = range.trim();
+            if (range.isEmpty())
+                continue;
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                cpus.add(Integer.parseInt(range));
+            } else {
+                int from = Integer.parseInt(range.substring(0, dash));
+                int to = Integer.parseInt(range.substring(dash + 1));
+                checkArgument(from <= to, "Invalid CPU range %s", range);
+                for (int i = from; i <= to; i++)
+                    cpus.add(i);
+            }
+        }
+        checkArgument(!cpus.isEmpty(), "Empty CPU list");
+        return Ints.toArray(cpus);
+    }
+
+    private static int[] without(int[] cpus, int[] excluded) {
+        List<Integer> remaining = new ArrayList<>();
+        for (int cpu : cpus)
+            if (excluded == null || !Ints.contains(excluded, cpu))
+                remaining.add(cpu);
+        if (remaining.isEmpty())
+            return cpus;
+        return Ints.toArray(remaining);
+    }
+
+    /**
+     * Pins the calling thread to the given CPUs.
+     *
+     * @return false if the thread couldn't be pinned, e.g. not on Linux
+     */
+    public static boolean pin(int[] cpus) {
+        if (cpus == null)
+            return true;
+        String mask = Ints.join(",", cpus);
+        try {
+            String tid = new File("/proc/thread-self").getCanonicalFile().getName();
+            Process taskset = new ProcessBuilder("taskset", "-p", "-c", mask, tid)
+                    .redirectErrorStream(true).start();
+            ByteStreams.toByteArray(taskset.getInputStream());
+            if (taskset.waitFor() != 0) {
+                log.warn("taskset failed pinning thread {} to CPUs {}", Thread.currentThread().getName(), mask);
+                return false;
+            }
+            log.debug("Thread {} ({}) pinned to CPUs {}", Thread.currentThread().getName(), tid, mask);
+            return true;
+        } catch (IOException e) {
+            log.warn("Impossible to pin thread {}: {}", Thread.currentThread().getName(), e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return a runnable that pins its thread before running the task
+     */
+    public static Runnable pinned(final int[] cpus, final Runnable task) {
+        if (cpus == null)
+            return task;
+        return new Runnable() {
+            @Override
+            public void run() {
+                pin(cpus);
+                task.run();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "reader on CPUs " + (readerCpus == null ? "any" : Ints.join(",", readerCpus))
+                + ", consumers on CPUs " + (consumerCpus == null ? "any" : Ints.join(",", consumerCpus));
+    }
+}
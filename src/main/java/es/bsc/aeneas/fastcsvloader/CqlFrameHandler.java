@@ -6,29 +6,73 @@
 package es.bsc.aeneas.fastcsvloader;
 
 import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.LifecycleAware;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * @author ccugnasc
  */
-public class CqlFrameHandler implements EventHandler<String[]> {
+public class CqlFrameHandler implements EventHandler<String[]>, LifecycleAware {
     private final static Logger log = LoggerFactory.getLogger(CqlFrameHandler.class);
 
     private final CqlFrameLoader cqlFrameLoader;
     private final int mask;
     private final int id;
+    private final boolean async;
+    private final Deduplicator deduplicator;
+    private final MemoryBudget.Rows budget;
     private volatile int counter = 0;
+    /**
+     * Rows acknowledged by Cassandra. In async mode it is updated by the
+     * driver threads.
+     */
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long filtered = 0;
+    private final CountDownLatch started = new CountDownLatch(1);
 
     public CqlFrameHandler(CqlFrameLoader cqlFrameLoader, int concurrents, int id) {
+        this(cqlFrameLoader, concurrents, id, false);
+    }
+
+    /**
+     * @param async if true the handler only dispatches the batches and doesn't
+     *              wait for Cassandra, see {@link CqlFrameLoader#insertBatchAsync}
+     */
+    public CqlFrameHandler(CqlFrameLoader cqlFrameLoader, int concurrents, int id, boolean async) {
+        this(cqlFrameLoader, concurrents, id, async, null);
+    }
+
+    /**
+     * @param deduplicator the stage preceding the consumers, null if the rows are not deduplicated
+     */
+    public CqlFrameHandler(CqlFrameLoader cqlFrameLoader, int concurrents, int id, boolean async, Deduplicator deduplicator) {
+        this(cqlFrameLoader, concurrents, id, async, deduplicator, null);
+    }
+
+    /**
+     * @param budget accounts the rows from their conversion until they are
+     *               written, null if the memory is not bounded
+     */
+    public CqlFrameHandler(CqlFrameLoader cqlFrameLoader, int concurrents, int id, boolean async, Deduplicator deduplicator,
+                           MemoryBudget.Rows budget) {
 
         checkArgument((concurrents & 0x1) == 0 || concurrents == 1, "The number of concurrents must be even");
         this.cqlFrameLoader = cqlFrameLoader;
         this.mask = concurrents - 1;
         this.id = id;
+        this.async = async;
+        this.deduplicator = deduplicator;
+        this.budget = budget;
     }
 
 
@@ -44,23 +88,136 @@ public class CqlFrameHandler implements EventHandler<String[]> {
      */
     @Override
     public void onEvent(String[] frame, long l, boolean b) throws Exception {
-        if ((l & mask) != id)
-            return;
-        /*
-        * no need for synch.. Always the same thread will update that statistic
-        * (Unless the print mask is minor then the mask
-        */
-        if ((counter++ & 0x0FFF) == 0) {
-            log.info("At line {}  after {} ms ", counter, System.currentTimeMillis() - last);
-            last = System.currentTimeMillis();
+        if ((l & mask) == id && FrameEventProducer.isLine(frame) && (deduplicator == null || !deduplicator.isDuplicate(l))) {
+            /*
+            * no need for synch.. Always the same thread will update that statistic
+            * (Unless the print mask is minor then the mask
+            */
+            if ((counter++ & 0x0FFF) == 0) {
+                log.info("At line {}  after {} ms ", counter, System.currentTimeMillis() - last);
+                last = System.currentTimeMillis();
+            }
+            if (budget != null && !budget.tryAcquire()) {
+                // the rows of this batch may hold the budget: never wait with them
+                flush();
+                budget.acquire();
+            }
+            boolean added = false;
+            try {
+                added = cqlFrameLoader.addToBatch(batchStatement, frame);
+                if (!added)
+                    filtered++;
+            } catch (RuntimeException e) {
+                // a line that can't be converted, logged by the exception handler
+                failed.incrementAndGet();
+                throw e;
+            } finally {
+                if (!added && budget != null)
+                    budget.release(1);
+            }
         }
-        cqlFrameLoader.addToBatch(batchStatement, frame);
+        /*
+         * The end of batch must be honoured even when the last event belongs
+         * to another consumer, otherwise the pending rows wait for the next one.
+         */
         if (b) {
-            cqlFrameLoader.insertBatch(batchStatement);
-            batchStatement = new BatchStatement();
+            flush();
+        }
+    }
+
+    private void flush() throws Exception {
+        final int size = batchStatement.size();
+        if (size == 0)
+            return;
+        if (async) {
+            try {
+                cqlFrameLoader.insertBatchAsync(batchStatement, new FutureCallback<ResultSet>() {
+                    @Override
+                    public void onSuccess(ResultSet result) {
+                        inserted.addAndGet(size);
+                        if (budget != null)
+                            budget.release(size);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failed.addAndGet(size);
+                        if (budget != null)
+                            budget.release(size);
+                        log.error("Consumer {} failed inserting a batch of {} rows", id, size, t);
+                    }
+                });
+            } catch (Exception e) {
+                // not sent: the callback will never be called
+                failed.addAndGet(size);
+                if (budget != null)
+                    budget.release(size);
+                throw e;
+            } finally {
+                batchStatement = new BatchStatement();
+            }
+        } else {
+            try {
+                cqlFrameLoader.insertBatch(batchStatement);
+                inserted.addAndGet(size);
+            } catch (Exception e) {
+                // the rows are counted as the async ones, the batch is not retried
+                failed.addAndGet(size);
+                throw e;
+            } finally {
+                batchStatement = new BatchStatement();
+                if (budget != null)
+                    budget.release(size);
+            }
         }
+    }
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
 
+    /**
+     * Waits for the consumer thread. The Disruptor ignores the consumers not
+     * started yet when shutting down, and they would then miss the halt.
+     */
+    public void awaitStart() throws InterruptedException {
+        started.await();
+    }
 
+    /**
+     * Called by the processor thread when the Disruptor is shut down: the
+     * rows still in the batch are written before the thread exits.
+     */
+    @Override
+    public void onShutdown() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Consumer {} failed flushing {} pending rows", id, batchStatement.size(), e);
+        }
+        log.debug("Consumer {} completed with {} rows inserted", id, inserted.get());
+    }
+
+    /**
+     * @return the number of rows this consumer has written to Cassandra
+     */
+    public long getInserted() {
+        return inserted.get();
+    }
+
+    /**
+     * @return the number of rows whose conversion or insertion failed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of rows skipped by the filter of the {@link RowTransform}
+     */
+    public long getFiltered() {
+        return filtered;
     }
 
     BatchStatement batchStatement = new BatchStatement();
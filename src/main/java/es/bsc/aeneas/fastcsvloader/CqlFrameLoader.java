@@ -8,26 +8,43 @@ package es.bsc.aeneas.fastcsvloader;
 import com.datastax.driver.core.*;
 import com.datastax.driver.core.policies.RoundRobinPolicy;
 import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * @author ccugnasc
  */
-public class CqlFrameLoader {
+public class CqlFrameLoader implements Closeable {
 
     private final static Logger log = LoggerFactory.getLogger(CqlFrameLoader.class);
     private final CqlTypeConverter parser;
+    /**
+     * The filter and the computed columns, null if none.
+     */
+    private final RowTransform transform;
+    private final int fields;
 
 
     protected Session session;
     protected PreparedStatement query;
     private Cluster cluster = null;
+    /**
+     * Bounds the number of batches sent with {@link #insertBatchAsync} and
+     * not yet acknowledged, so the driver queues never grow unbounded.
+     */
+    private final int maxInFlight = Integer.getInteger("cassandra.maxInFlight", 256);
+    private final Semaphore inFlight = new Semaphore(maxInFlight);
 
 
     /**
@@ -35,41 +52,172 @@ public class CqlFrameLoader {
      */
 
     public CqlFrameLoader(Iterator<String[]> queue, String queryText) {
+        this(queryText, RowTransform.fromProperties(queue instanceof TrajectoryReader ? ((TrajectoryReader) queue).header : null));
+    }
+
+    /**
+     * @param transform the filter and the computed columns, null if the
+     *                  lines are bound as they are
+     */
+    public CqlFrameLoader(String queryText, RowTransform transform) {
         this.session = cluster().connect();
         log.info("preparing query \"{}\"", queryText);
         query = session.prepare(checkNotNull(queryText));
         parser=new CqlTypeConverter(query.getVariables().asList());
+        this.transform = transform;
+        fields = fields(parser, transform);
 
     }
 
+    /**
+     * Derives the query from the table metadata and the header of the file,
+     * see {@link InsertPlan}.
+     */
+    public CqlFrameLoader(String keyspace, String table, String[] header) {
+        this(keyspace, table, header, RowTransform.fromProperties(checkNotNull(header, "The file has no header")));
+    }
 
+    /**
+     * @param transform the filter and the computed columns, null if the
+     *                  lines are bound as they are
+     */
+    public CqlFrameLoader(String keyspace, String table, String[] header, RowTransform transform) {
+        checkNotNull(header, "The file has no header");
+        this.session = cluster().connect();
+        this.transform = transform;
+        // the computed columns are bound after the ones of the file
+        InsertPlan plan = InsertPlan.fromCluster(cluster().getMetadata(), keyspace, table,
+                transform == null ? header : transform.extend(header));
+        log.info("preparing query \"{}\"", plan.query);
+        query = session.prepare(plan.query);
+        parser = new CqlTypeConverter(query.getVariables().asList());
+        fields = fields(parser, transform);
+    }
 
+    /**
+     * @return the number of variables bound to the fields of the line
+     */
+    private static int fields(CqlTypeConverter parser, RowTransform transform) {
+        int computed = transform == null ? 0 : transform.size();
+        checkArgument(parser.parsers.length > computed, "The query binds %s variables, none left for the fields after %s computed columns",
+                parser.parsers.length, computed);
+        return parser.parsers.length - computed;
+    }
 
-    public void insert(String[] frame) throws Exception {
-        Object[] binding = new Object[frame.length];
-        for (int i = 0;i<parser.parsers.length;i++) {
-             binding[i] = parser.parsers[i].parse(frame[i]);
-        }
+
+
+
+    /**
+     * @return false if the line has been skipped by the filter
+     */
+    public boolean insert(String[] frame) throws Exception {
+        Object[] binding = convert(frame);
+        if (binding == null)
+            return false;
         session.execute(query.bind(binding));
+        return true;
     }
 
 
-    public void addToBatch(BatchStatement batchStatement, String[] frame) throws Exception {
-        Object[] binding = new Object[frame.length];
-        for (int i = 0;i<parser.parsers.length;i++) {
+    /**
+     * @return false if the line has been skipped by the filter
+     */
+    public boolean addToBatch(BatchStatement batchStatement, String[] frame) throws Exception {
+        Object[] binding = convert(frame);
+        if (binding == null)
+            return false;
+        batchStatement.add(query.bind(binding));
+        return true;
+    }
+
+    /**
+     * @return the values to bind, null if the line is skipped by the filter
+     */
+    Object[] convert(String[] frame) {
+        if (transform != null && !transform.accept(frame))
+            return null;
+        Object[] binding = new Object[parser.parsers.length];
+        for (int i = 0; i < fields; i++) {
             binding[i] = parser.parsers[i].parse(frame[i]);
         }
-        batchStatement.add(query.bind(binding));
+        for (int i = fields; i < binding.length; i++) {
+            binding[i] = transform.compute(i - fields, frame, parser.types[i]);
+        }
+        return binding;
     }
 
 
 
+    /**
+     * @return a statement whose variables are set one by one, for values
+     * that are already typed
+     */
+    public BoundStatement newStatement() {
+        return new BoundStatement(query);
+    }
+
+    /**
+     * @return the Java class of each bound variable
+     */
+    public Class<?>[] variableTypes() {
+        return parser.types.clone();
+    }
+
     public void insertBatch(BatchStatement batchStatement) throws Exception {
         if (log.isDebugEnabled())
             log.debug("Inserting batch of size {}", batchStatement.getStatements().size());
         session.execute(batchStatement);
     }
 
+    /**
+     * Sends the batch without waiting for the response. Blocks only when
+     * there are already {@code cassandra.maxInFlight} batches pending.
+     * The callback runs before the batch stops counting as pending, so
+     * after {@link #awaitPending()} all the callbacks have completed.
+     */
+    public ResultSetFuture insertBatchAsync(BatchStatement batchStatement, final FutureCallback<ResultSet> callback)
+            throws InterruptedException {
+        if (log.isDebugEnabled())
+            log.debug("Inserting async batch of size {}", batchStatement.getStatements().size());
+        inFlight.acquire();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(batchStatement);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                try {
+                    callback.onSuccess(result);
+                } finally {
+                    inFlight.release();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                try {
+                    callback.onFailure(t);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Waits until all the batches sent with {@link #insertBatchAsync} have
+     * been acknowledged (or failed).
+     */
+    public void awaitPending() throws InterruptedException {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+
     public Cluster cluster() {
 
         if (cluster != null) return cluster;
@@ -86,4 +234,44 @@ public class CqlFrameLoader {
         return cluster;
 
     }
+
+    /**
+     * Closes the session and the cluster. Must be called once all the
+     * consumers are done, otherwise the driver threads keep the JVM alive.
+     */
+    @Override
+    public void close() {
+        if (session != null)
+            session.close();
+        if (cluster != null) {
+            log.info("Closing the connection with the cluster {}", cluster.getClusterName());
+            cluster.close();
+        }
+    }
+
+    /**
+     * @return the filter and the computed columns applied to the lines, null if none
+     */
+    public RowTransform transform() {
+        return transform;
+    }
+
+    /**
+     * @return the indexes of the bound variables of the primary key columns
+     */
+    public int[] primaryKeyIndexes() {
+        ColumnDefinitions variables = query.getVariables();
+        TableMetadata table = cluster().getMetadata()
+                .getKeyspace(Metadata.quote(variables.getKeyspace(0)))
+                .getTable(Metadata.quote(variables.getTable(0)));
+        List<ColumnMetadata> primaryKey = table.getPrimaryKey();
+        int[] indexes = new int[primaryKey.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = variables.getIndexOf(Metadata.quote(primaryKey.get(i).getName()));
+            checkArgument(indexes[i] >= 0, "The primary key column %s is not bound", primaryKey.get(i).getName());
+            checkArgument(indexes[i] < fields, "The primary key column %s is computed, it can't be deduplicated",
+                    primaryKey.get(i).getName());
+        }
+        return indexes;
+    }
 }
@@ -34,20 +34,24 @@ public class CqlTypeConverter {
            int i = 0;
            List<ColumnSpecification> columns=cols;
             parsers = new Parser[columns.size()];
+            types = new Class<?>[columns.size()];
            for (ColumnSpecification cd : columns) {
                //TODO not really efficient
                Class<?> type = cd.type.getSerializer().getType();
                Parser parser = checkNotNull(parserMap.get(type), "Parser not found for " + type);
+               types[i] = type;
                parsers[i++] = parser;
            }
        }else if(first instanceof ColumnDefinitions.Definition){
         List<ColumnDefinitions.Definition> columns=cols;
         int i = 0;
         parsers=new Parser[columns.size()];
+        types = new Class<?>[columns.size()];
         for (ColumnDefinitions.Definition cd : columns) {
             //TODO not really efficient
             Class<?> type = cd.getType().asJavaClass();
             Parser parser = checkNotNull(parserMap.get(type), "Parser not found for " + type);
+            types[i] = type;
             parsers[i++] = parser;
         }
        }else{
@@ -90,5 +94,9 @@ public class CqlTypeConverter {
 
     }
     public final Parser[] parsers;
+    /**
+     * The Java class of each bound variable.
+     */
+    public final Class<?>[] types;
 
 }
@@ -0,0 +1,207 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.EventProcessor;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.SequenceBarrier;
+import com.lmax.disruptor.Sequencer;
+import com.lmax.disruptor.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Disruptor stage, ahead of the consumers, that drops the rows whose primary
+ * key appears again within the next {@code window} rows, so only the last
+ * version of a key is written.
+ * <p/>
+ * The stage keeps its sequence {@code window} rows behind the lines it has
+ * processed: the consumers can't reach a row until every later row of the
+ * window has been checked, and a row found duplicated later is marked to be
+ * skipped. Once the reader is done, {@link #drain()} releases the last rows.
+ * <p/>
+ * The lines rejected by the filter of the {@link RowTransform} are not
+ * written, so they don't drop the previous version of their key.
+ * <p/>
+ * The keys are compared by a 64 bit fingerprint of their text only: in the
+ * unlikely case of a collision a row with a different key is dropped.
+ */
+public class Deduplicator implements EventProcessor {
+    private final static Logger log = LoggerFactory.getLogger(Deduplicator.class);
+
+    private final RingBuffer<String[]> ringBuffer;
+    private final SequenceBarrier barrier;
+    private final Sequence sequence = new Sequence(Sequencer.INITIAL_CURSOR_VALUE);
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean draining = false;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final int[] keys;
+    private final int window;
+    private final RowTransform filter;
+    private final FingerprintTable table;
+    private final boolean[] duplicate;
+    private final int mask;
+    private volatile long duplicates = 0;
+
+    /**
+     * @param keys   the indexes of the primary key columns in the frame
+     * @param window the number of rows, smaller than the ring buffer
+     */
+    public Deduplicator(RingBuffer<String[]> ringBuffer, int[] keys, int window) {
+        this(ringBuffer, keys, window, null);
+    }
+
+    /**
+     * @param filter the transform whose filter the consumers apply, null if none
+     */
+    public Deduplicator(RingBuffer<String[]> ringBuffer, int[] keys, int window, RowTransform filter) {
+        checkArgument(keys.length > 0, "No key columns");
+        checkArgument(window > 0 && window < ringBuffer.getBufferSize(),
+                "The dedup window (%s) must be smaller than the buffer size (%s)", window, ringBuffer.getBufferSize());
+        this.ringBuffer = ringBuffer;
+        this.barrier = ringBuffer.newBarrier();
+        this.keys = keys;
+        this.window = window;
+        this.filter = filter;
+        this.table = new FingerprintTable(window);
+        this.duplicate = new boolean[ringBuffer.getBufferSize()];
+        this.mask = ringBuffer.getBufferSize() - 1;
+    }
+
+    /**
+     * To be called by the consumers for the sequences released by this stage.
+     */
+    public boolean isDuplicate(long sequence) {
+        return duplicate[(int) (sequence & mask)];
+    }
+
+    /**
+     * @return the number of rows dropped
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Waits for the processor thread: a processor halted before starting
+     * would ignore the halt.
+     */
+    public void awaitStart() throws InterruptedException {
+        started.await();
+    }
+
+    /**
+     * Releases all the rows processed, to be called once the reader is done.
+     */
+    public void drain() {
+        draining = true;
+        barrier.alert();
+    }
+
+    @Override
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void halt() {
+        running.set(false);
+        barrier.alert();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true))
+            throw new IllegalStateException("Thread is already running");
+        barrier.clearAlert();
+        started.countDown();
+        long next = sequence.get() + 1;
+        long released = sequence.get();
+        long count = 0;
+        try {
+            while (true) {
+                try {
+                    long available = barrier.waitFor(next);
+                    for (; next <= available; next++) {
+                        // the rows out of the window can't be dropped any more
+                        if (next - 1 - window > released)
+                            released = next - 1 - window;
+                        duplicate[(int) (next & mask)] = false;
+                        String[] frame = ringBuffer.get(next);
+                        if (!FrameEventProducer.isLine(frame) || !accepted(frame))
+                            continue;
+                        long previous = table.put(fingerprint(frame), next, released + 1);
+                        // the previous version is still held back, it can be dropped
+                        if (previous > released) {
+                            duplicate[(int) (previous & mask)] = true;
+                            duplicates = ++count;
+                        }
+                    }
+                    if (draining)
+                        released = next - 1;
+                    sequence.set(released);
+                } catch (AlertException e) {
+                    if (!running.get())
+                        break;
+                    if (draining) {
+                        barrier.clearAlert();
+                        released = next - 1;
+                        sequence.set(released);
+                    }
+                } catch (TimeoutException e) {
+                    // nothing to do, waiting again
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+        log.info("Dropped {} duplicated rows", count);
+    }
+
+    private boolean accepted(String[] frame) {
+        if (filter == null)
+            return true;
+        try {
+            return filter.accept(frame);
+        } catch (RuntimeException e) {
+            // the consumer fails on the line and reports it
+            return true;
+        }
+    }
+
+    /**
+     * FNV-1a of the key fields, with a separator between them, mixed with
+     * the murmur3 finalizer.
+     */
+    long fingerprint(String[] frame) {
+        long h = 0xcbf29ce484222325L;
+        for (int k : keys) {
+            String field = frame[k];
+            for (int i = 0; i < field.length(); i++) {
+                h ^= field.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,11 +1,12 @@
 package es.bsc.aeneas.fastcsvloader;
 
 import com.codahale.metrics.MetricRegistry;
-import com.lmax.disruptor.BusySpinWaitStrategy;
 import com.lmax.disruptor.EventFactory;
-import com.lmax.disruptor.PhasedBackoffWaitStrategy;
+import com.lmax.disruptor.ExceptionHandler;
 import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
 import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.EventHandlerGroup;
 import com.lmax.disruptor.dsl.ProducerType;
 
 import org.slf4j.Logger;
@@ -13,7 +14,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.Executor;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -29,15 +31,49 @@ public class DisruptorImplementation {
     Logger log = LoggerFactory.getLogger(DisruptorImplementation.class);
     final private CqlFrameLoader cqlFrameLoader;
     final private TrajectoryReader trajectoryReader;
+    final private File file;
+    // false when the loader is shared between several loads
+    final private boolean closeLoader;
+    private volatile long published = 0;
+    private volatile long duplicates = 0;
+    private volatile long filtered = 0;
 
     public DisruptorImplementation(File file, char FS, String queryText) throws IOException {
-        trajectoryReader = new MappedReader(file, FS);
+        this.file = file;
+        trajectoryReader = Boolean.getBoolean("follow") ? new FollowReader(file, FS, false) : new MappedReader(file, FS);
         this.cqlFrameLoader = new CqlFrameLoader(trajectoryReader, queryText);
+        this.closeLoader = true;
     }
 
-    public static void main(String args[]) throws InterruptedException, IOException {
+    /**
+     * Loads a file whose first line contains the column names, the query is
+     * derived from the table metadata.
+     */
+    public DisruptorImplementation(File file, char FS, String keyspace, String table) throws IOException {
+        this.file = file;
+        trajectoryReader = Boolean.getBoolean("follow") ? new FollowReader(file, FS, true) : new MappedReader(file, FS, true);
+        this.cqlFrameLoader = new CqlFrameLoader(keyspace, table, trajectoryReader.header);
+        this.closeLoader = true;
+    }
+
+    /**
+     * Loads the lines of the given reader with a loader shared with other
+     * loads: the loader is not closed at the end of {@link #execute()}.
+     */
+    public DisruptorImplementation(TrajectoryReader trajectoryReader, CqlFrameLoader cqlFrameLoader) {
+        this.file = trajectoryReader.trajectory;
+        this.trajectoryReader = trajectoryReader;
+        this.cqlFrameLoader = cqlFrameLoader;
+        this.closeLoader = false;
+    }
+
+    public static void main(String args[]) throws Exception {
+        // --profile runs the load on a sample of the file only, see LoadProfiler
+        boolean profile = args.length == 3 && args[0].equals("--profile");
+        if (profile)
+            args = Arrays.copyOfRange(args, 1, args.length);
         if(args.length!=2)
-            throw new IllegalArgumentException("You must provide the name of the file and the query");
+            throw new IllegalArgumentException("You must provide the name of the file and the query (or keyspace.table)");
         String file=checkNotNull(args[0],"Fist argument missing");
         String query=checkNotNull(args[1],"Second argument missing");
         File f=new File(file);
@@ -45,22 +81,81 @@ public class DisruptorImplementation {
         String fs = System.getProperty("FS", ",");
         checkArgument(fs.length()==1,"Supported only separators of 1 single char");
         char FS=fs.charAt(0);
-        DisruptorImplementation implementation = new DisruptorImplementation(f, FS, query);
-        implementation.execute();
+        DisruptorImplementation implementation;
+        if (query.trim().toLowerCase().startsWith("insert")) {
+            implementation = new DisruptorImplementation(f, FS, query);
+        } else {
+            String[] name = InsertPlan.splitName(query);
+            implementation = new DisruptorImplementation(f, FS, name[0], name[1]);
+        }
+        if (profile)
+            implementation.profile();
+        else
+            implementation.execute();
 
 
     }
 
-    public void execute() throws InterruptedException {
+    /**
+     * @return the number of lines read by the last {@link #execute()}
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return the number of duplicated lines dropped by the last {@link #execute()}
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the number of lines skipped by the filter in the last {@link #execute()}
+     */
+    public long getFiltered() {
+        return filtered;
+    }
+
+    /**
+     * Profiles the load on a sample of the file instead of running it, see
+     * {@link LoadProfiler}.
+     */
+    public LoadProfiler.Report profile() throws Exception {
+        try {
+            LoadProfiler profiler = new LoadProfiler(file, trajectoryReader.FS, trajectoryReader.header != null, cqlFrameLoader);
+            LoadProfiler.Report report = profiler.run(Double.parseDouble(System.getProperty("profile.sample", "1")),
+                    Boolean.getBoolean("profile.write"), Integer.getInteger("disruptor.consumers", 16));
+            log.info("Profile of {}:{}{}", file, System.lineSeparator(), report);
+            return report;
+        } finally {
+            if (closeLoader)
+                cqlFrameLoader.close();
+        }
+    }
+
+    /**
+     * @return the number of rows inserted
+     */
+    public long execute() throws Exception {
         // Executor that will be used to construct new threads for consumers
         int nConsumers = Integer.getInteger("disruptor.consumers",16);
         checkArgument(((nConsumers != 0) && ((nConsumers & (~nConsumers + 1)) == nConsumers)),"Number of consumers must be a power of 2");
-        Executor executor = Executors.newFixedThreadPool(nConsumers, new ThreadFactory() {
+        final Affinity affinity = Affinity.fromProperties();
+        if (affinity != null)
+            log.info("Thread affinity: {}", affinity);
+        final int[] consumerCpus = affinity == null ? null : affinity.consumerCpus;
+        int dedupWindow = Integer.getInteger("dedup.window", 0);
+        // the last rows of the window are held back until it slides, a followed file may never push them out
+        checkArgument(dedupWindow <= 0 || !(trajectoryReader instanceof FollowReader),
+                "dedup.window can't be used with follow=true");
+        // one more thread for the deduplication stage
+        ExecutorService executor = Executors.newFixedThreadPool(dedupWindow > 0 ? nConsumers + 1 : nConsumers, new ThreadFactory() {
             private int i = 0;
 
             public Thread newThread(Runnable r) {
                 log.info("Created thread {}", i);
-                return new Thread(r, "DisThread-" + i++);
+                return new Thread(Affinity.pinned(consumerCpus, r), "DisThread-" + i++);
 
             }
 
@@ -68,29 +163,95 @@ public class DisruptorImplementation {
 
         // Specify the size of the ring buffer, must be power of 2.
         int bufferSize = Integer.getInteger("bufferSize",1024);
+        String waitStrategy = System.getProperty("disruptor.waitStrategy", "phased");
+        boolean monitor = Boolean.getBoolean("disruptor.monitor");
+        // Async consumers only dispatch the batches, a few of them are enough
+        boolean async = Boolean.getBoolean("disruptor.async");
+        DisruptorTuner.Calibration calibration = null;
+        if (DisruptorTuner.AUTO.equals(waitStrategy)) {
+            // the first lines of the load, the ring starts after them
+            calibration = DisruptorTuner.calibrate(trajectoryReader, cqlFrameLoader, nConsumers,
+                    Integer.getInteger("disruptor.calibrationLines", 4096), async);
+            waitStrategy = calibration.waitStrategy;
+            // an explicit buffer size wins over the calibrated one
+            if (System.getProperty("bufferSize") == null)
+                bufferSize = calibration.bufferSize;
+            monitor = true;
+        }
         checkArgument(((bufferSize != 0) && ((bufferSize & (~bufferSize + 1)) == bufferSize)),"Buffer size must be a power of 2");
+        if (dedupWindow > 0 && bufferSize <= dedupWindow) {
+            // the window must leave room in the ring for the reader
+            while (bufferSize < 2L * dedupWindow)
+                bufferSize <<= 1;
+            log.info("Buffer size increased to {} for a dedup window of {} rows", bufferSize, dedupWindow);
+        }
+        MemoryBudget budget = MemoryBudget.get();
+        MemoryBudget.Rows budgetRows = null;
+        if (budget != null) {
+            long rowBytes = MemoryBudget.rowBytes(trajectoryReader.numberOfFields, MemoryBudget.averageLineBytes(file));
+            // the ring must stay larger than the dedup window
+            int minSize = dedupWindow > 0 ? Integer.highestOneBit(dedupWindow) << 1 : MemoryBudget.MIN_BUFFER_SIZE;
+            int ringSize = budget.ringSize(bufferSize, rowBytes, minSize);
+            if (ringSize < bufferSize)
+                log.info("Buffer size reduced to {} to hold the lines of about {} bytes in the memory budget", ringSize, rowBytes);
+            if (dedupWindow > 0 && ringSize * rowBytes > budget.total / 4)
+                log.warn("A dedup.window of {} rows needs a buffer size of {}, more than the memory.budget of {} MB allows",
+                        dedupWindow, ringSize, budget.total >> 20);
+            bufferSize = ringSize;
+            budgetRows = budget.rows(rowBytes);
+        }
 
-        log.info("Using {} concurrent consumers with a buffer size of {}",nConsumers,bufferSize);
+        log.info("Using {} concurrent {} consumers with a buffer size of {} and {} wait strategy",
+                nConsumers, async ? "async" : "sync", bufferSize, waitStrategy);
 // Construct the Disruptor
 
-        Disruptor disruptor = new Disruptor(new EventFactory<String[]>() {
+        Disruptor<String[]> disruptor = new Disruptor<>(new EventFactory<String[]>() {
             @Override
             public String[] newInstance() {
 
                 return new String[trajectoryReader.numberOfFields];
             }
         }, bufferSize, executor,
-                ProducerType.SINGLE, PhasedBackoffWaitStrategy.withLiteLock(
-                500,
-                5000,
-                TimeUnit.MILLISECONDS
-        ));
+                ProducerType.SINGLE, DisruptorTuner.waitStrategy(waitStrategy));
         RingBuffer<String[]> ringBuffer = disruptor.getRingBuffer();
+        /*
+         * Set before the handlers, the processors take it when created. The
+         * handlers count the rows lost and the processor goes on with the next
+         * lines: a halted processor would block the ring and the shutdown.
+         */
+        disruptor.handleExceptionsWith(new ExceptionHandler() {
+            @Override
+            public void handleEventException(Throwable ex, long sequence, Object event) {
+                log.error("Failed processing line {}: {}", sequence, Arrays.toString((Object[]) event), ex);
+            }
+
+            @Override
+            public void handleOnStartException(Throwable ex) {
+                log.error("Failed starting a consumer", ex);
+            }
+
+            @Override
+            public void handleOnShutdownException(Throwable ex) {
+                log.error("Failed stopping a consumer", ex);
+            }
+        });
 
 
-        for (int i = 0; i < nConsumers; i++) {
-            CqlFrameHandler cqlFrameHandler = new CqlFrameHandler(cqlFrameLoader, nConsumers, i);
-            disruptor.handleEventsWith(cqlFrameHandler);
+        Deduplicator deduplicator = null;
+        if (dedupWindow > 0) {
+            deduplicator = new Deduplicator(ringBuffer, cqlFrameLoader.primaryKeyIndexes(), dedupWindow,
+                    cqlFrameLoader.transform());
+            log.info("Dropping the rows whose key repeats within {} rows", dedupWindow);
+        }
+        // an array, not the varargs: no generic array is created
+        CqlFrameHandler[] handlers = new CqlFrameHandler[nConsumers];
+        for (int i = 0; i < nConsumers; i++)
+            handlers[i] = new CqlFrameHandler(cqlFrameLoader, nConsumers, i, async, deduplicator, budgetRows);
+        if (deduplicator != null) {
+            EventHandlerGroup<String[]> afterDedup = disruptor.handleEventsWith(deduplicator);
+            afterDedup.handleEventsWith(handlers);
+        } else {
+            disruptor.handleEventsWith(handlers);
         }
 
         // Start the Disruptor, starts all threads running
@@ -98,12 +259,87 @@ public class DisruptorImplementation {
 
         // Get the ring buffer from the Disruptor to be used for publishing.
         FrameEventProducer producer = new FrameEventProducer(ringBuffer, trajectoryReader);
-        Thread t = new Thread(producer, "TrajReader");
+        Thread t = new Thread(Affinity.pinned(affinity == null ? null : affinity.readerCpus, producer), "TrajReader");
+        DisruptorTuner.OccupancyMonitor occupancy = null;
+        Thread monitorThread = null;
         long time = System.currentTimeMillis();
-        disruptor.start();
-        t.start();
+        try {
+            disruptor.start();
+            if (deduplicator != null)
+                deduplicator.awaitStart();
+            for (CqlFrameHandler handler : handlers)
+                handler.awaitStart();
+            t.start();
+            if (monitor) {
+                occupancy = new DisruptorTuner.OccupancyMonitor(ringBuffer);
+                monitorThread = new Thread(occupancy, "RingMonitor");
+                monitorThread.setDaemon(true);
+                monitorThread.start();
+            }
+
+            t.join();
+            long readTime = System.currentTimeMillis() - time;
+            if (deduplicator != null)
+                deduplicator.drain();
+            if (occupancy != null) {
+                occupancy.stop();
+                monitorThread.join();
+                occupancy.report();
+            }
+            /*
+             * Waits until every published line has been consumed, then halts
+             * the processors: each handler flushes its pending batch on shutdown.
+             */
+            long notDrained = 0;
+            long timeout = Long.getLong("disruptor.shutdownTimeout", 600);
+            try {
+                disruptor.shutdown(timeout, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                notDrained = ringBuffer.getCursor() - ringBuffer.getMinimumGatingSequence();
+                log.error("{} lines not consumed after {} s, halting the consumers", notDrained, timeout);
+                disruptor.halt();
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                log.warn("Consumer threads still running after the shutdown");
+            if (async)
+                cqlFrameLoader.awaitPending();
+            long elapsed = System.currentTimeMillis() - time;
 
-        t.join();
-        log.info("Load completed in {} ms", System.currentTimeMillis() - time);
+            long inserted = 0, failed = 0, skipped = 0;
+            if (calibration != null) {
+                inserted = calibration.inserted;
+                failed = calibration.failed;
+                skipped = calibration.filtered;
+            }
+            for (CqlFrameHandler handler : handlers) {
+                inserted += handler.getInserted();
+                failed += handler.getFailed();
+                skipped += handler.getFiltered();
+            }
+            published = producer.getPublished() + (calibration == null ? 0 : calibration.lines);
+            duplicates = deduplicator == null ? 0 : deduplicator.getDuplicates();
+            filtered = skipped;
+            if (duplicates > 0)
+                log.info("{} duplicated lines dropped", duplicates);
+            if (filtered > 0)
+                log.info("{} lines skipped by the filter", filtered);
+            if (inserted != published - duplicates - filtered)
+                log.error("Published {} lines but only {} were inserted ({} failed, {} not consumed, {} duplicated, {} filtered)",
+                        published, inserted, failed, notDrained, duplicates, filtered);
+            if (producer.getFailure() != null)
+                throw new IllegalStateException("The reading of " + file + " failed after " + published
+                        + " lines, " + inserted + " rows inserted", producer.getFailure());
+            log.info("Read completed in {} ms", readTime);
+            log.info("Load completed in {} ms: {} rows inserted, {} rows/s",
+                    elapsed, inserted, elapsed == 0 ? inserted : inserted * 1000 / elapsed);
+            return inserted;
+        } finally {
+            // no-op after a clean shutdown, stops the consumers on failures
+            disruptor.halt();
+            executor.shutdownNow();
+            if (closeLoader)
+                cqlFrameLoader.close();
+        }
     }
 }
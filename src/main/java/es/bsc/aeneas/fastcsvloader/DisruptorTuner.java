@@ -0,0 +1,242 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.PhasedBackoffWaitStrategy;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the wait strategy and the size of the ring buffer of the Disruptor.
+ * <p/>
+ * The strategy can be set by name ({@code disruptor.waitStrategy}) or chosen
+ * by {@link #calibrate} measuring how fast the reader produces lines and how
+ * fast the consumers insert them.
+ */
+public class DisruptorTuner {
+    private final static Logger log = LoggerFactory.getLogger(DisruptorTuner.class);
+
+    public static final String AUTO = "auto";
+    static final int MIN_BUFFER_SIZE = 1024;
+    static final int MAX_BUFFER_SIZE = 1 << 20;
+    static final int CALIBRATION_BATCH = 64;
+
+    /**
+     * @param name one of busyspin, yielding, sleeping, blocking or phased
+     */
+    public static WaitStrategy waitStrategy(String name) {
+        switch (name) {
+            case "busyspin":
+                return new BusySpinWaitStrategy();
+            case "yielding":
+                return new YieldingWaitStrategy();
+            case "sleeping":
+                return new SleepingWaitStrategy();
+            case "blocking":
+                return new BlockingWaitStrategy();
+            case "phased":
+                return PhasedBackoffWaitStrategy.withLiteLock(500, 5000, TimeUnit.MILLISECONDS);
+            default:
+                throw new IllegalArgumentException("Wait strategy " + name + " unknown");
+        }
+    }
+
+    public static class Calibration {
+        public final long producerNs;
+        public final long consumerNs;
+        public final String waitStrategy;
+        public final int bufferSize;
+        /**
+         * The lines of the sample, already loaded: read, inserted, failed
+         * and skipped by the filter.
+         */
+        public final long lines, inserted, failed, filtered;
+
+        Calibration(long producerNs, long consumerNs, String waitStrategy, int bufferSize) {
+            this(producerNs, consumerNs, waitStrategy, bufferSize, 0, 0, 0, 0);
+        }
+
+        Calibration(long producerNs, long consumerNs, String waitStrategy, int bufferSize,
+                    long lines, long inserted, long failed, long filtered) {
+            this.producerNs = producerNs;
+            this.consumerNs = consumerNs;
+            this.waitStrategy = waitStrategy;
+            this.bufferSize = bufferSize;
+            this.lines = lines;
+            this.inserted = inserted;
+            this.failed = failed;
+            this.filtered = filtered;
+        }
+
+        @Override
+        public String toString() {
+            return "reader " + producerNs + " ns/line, consumer " + consumerNs + " ns/line -> "
+                    + waitStrategy + " wait strategy with a buffer size of " + bufferSize;
+        }
+    }
+
+    /**
+     * Reads the first lines of the load and inserts them as a single
+     * consumer would do, with synchronous or asynchronous batches as the load
+     * will. The sample is taken from the reader of the load: its lines are
+     * part of the load and they are not read nor written again.
+     *
+     * @param reader the reader of the load
+     * @param lines  the number of lines of the sample
+     */
+    public static Calibration calibrate(TrajectoryReader reader, CqlFrameLoader loader, int nConsumers, int lines,
+                                        boolean async) throws Exception {
+        String[][] sample = new String[lines][];
+        int n = 0;
+        long start = System.nanoTime();
+        while (n < lines && reader.hasNext())
+            sample[n++] = reader.next();
+        long producerNs = n == 0 ? 0 : (System.nanoTime() - start) / n;
+
+        start = System.nanoTime();
+        final AtomicLong inserted = new AtomicLong(), failed = new AtomicLong();
+        long filtered = 0;
+        BatchStatement batch = new BatchStatement();
+        for (int i = 0; i < n; i++) {
+            try {
+                if (!loader.addToBatch(batch, sample[i]))
+                    filtered++;
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                log.error("Failed converting line {}", i, e);
+            }
+            // the last lines may have all been filtered out
+            if (batch.size() == CALIBRATION_BATCH || i == n - 1 && batch.size() > 0) {
+                send(loader, batch, async, inserted, failed);
+                batch = new BatchStatement();
+            }
+        }
+        if (async)
+            loader.awaitPending();
+        long consumerNs = n == 0 ? 0 : (System.nanoTime() - start) / n;
+        Calibration c = choose(producerNs, consumerNs, nConsumers, Runtime.getRuntime().availableProcessors());
+        Calibration calibration = new Calibration(c.producerNs, c.consumerNs, c.waitStrategy, c.bufferSize,
+                n, inserted.get(), failed.get(), filtered);
+        log.info("Calibrated on {} lines: {}", n, calibration);
+        return calibration;
+    }
+
+    private static void send(CqlFrameLoader loader, BatchStatement batch, boolean async, final AtomicLong inserted,
+                             final AtomicLong failed) throws InterruptedException {
+        final int size = batch.size();
+        if (async) {
+            try {
+                loader.insertBatchAsync(batch, new FutureCallback<ResultSet>() {
+                    @Override
+                    public void onSuccess(ResultSet result) {
+                        inserted.addAndGet(size);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failed.addAndGet(size);
+                        log.error("Failed inserting a batch of {} rows", size, t);
+                    }
+                });
+            } catch (RuntimeException e) {
+                failed.addAndGet(size);
+                log.error("Failed inserting a batch of {} rows", size, e);
+            }
+        } else {
+            try {
+                loader.insertBatch(batch);
+                inserted.addAndGet(size);
+            } catch (Exception e) {
+                failed.addAndGet(size);
+                log.error("Failed inserting a batch of {} rows", size, e);
+            }
+        }
+    }
+
+    /**
+     * If the consumers are faster than the reader they spend most of their
+     * time waiting, so a low latency strategy pays off as long as every
+     * thread has its own core. Otherwise the consumers rarely wait and the
+     * blocking strategy saves the CPU for the reader.
+     * <p/>
+     * The ring must hold a batch for every consumer plus the lines read
+     * while a consumer waits for Cassandra.
+     */
+    static Calibration choose(long producerNs, long consumerNs, int nConsumers, int cores) {
+        String strategy;
+        if (consumerNs / nConsumers < producerNs)
+            strategy = cores > nConsumers ? "yielding" : "sleeping";
+        else
+            strategy = "blocking";
+        long batchNs = consumerNs * CALIBRATION_BATCH;
+        long readDuringBatch = producerNs == 0 ? MAX_BUFFER_SIZE : batchNs / producerNs;
+        long needed = 2 * Math.max((long) nConsumers * CALIBRATION_BATCH, readDuringBatch);
+        int bufferSize = MIN_BUFFER_SIZE;
+        while (bufferSize < needed && bufferSize < MAX_BUFFER_SIZE)
+            bufferSize <<= 1;
+        return new Calibration(producerNs, consumerNs, strategy, bufferSize);
+    }
+
+    /**
+     * Samples the occupancy of the ring buffer during the load. A ring
+     * always full means the consumers are the bottleneck, always empty
+     * means the reader is.
+     */
+    public static class OccupancyMonitor implements Runnable {
+        private final RingBuffer<?> ringBuffer;
+        private volatile boolean running = true;
+        private long samples = 0;
+        private long used = 0;
+        private long full = 0;
+
+        public OccupancyMonitor(RingBuffer<?> ringBuffer) {
+            this.ringBuffer = ringBuffer;
+        }
+
+        @Override
+        public void run() {
+            int size = ringBuffer.getBufferSize();
+            while (running) {
+                long u = size - ringBuffer.remainingCapacity();
+                used += u;
+                if (u == size)
+                    full++;
+                samples++;
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        public void stop() {
+            running = false;
+        }
+
+        /**
+         * Logs the statistics, to be called once the monitor thread is joined.
+         */
+        public void report() {
+            if (samples == 0)
+                return;
+            long avg = used * 100 / samples / ringBuffer.getBufferSize();
+            long fullPct = full * 100 / samples;
+            log.info("Ring buffer occupancy: {}% on average, full {}% of the time", avg, fullPct);
+            if (fullPct > 50)
+                log.info("The consumers are the bottleneck: more consumers or async mode may help");
+            else if (avg < 10)
+                log.info("The reader is the bottleneck: a smaller buffer or fewer consumers are enough");
+        }
+    }
+}
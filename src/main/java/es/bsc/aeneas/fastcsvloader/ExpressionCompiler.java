@@ -0,0 +1,384 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compiles the expressions of {@link RowTransform} into trees of method
+ * handles taking the fields of a line, so the text is parsed once and never
+ * interpreted while loading. The trees are kept in instance fields, which
+ * the JIT doesn't treat as constants: each evaluation is a call through the
+ * handle, not code inlined as if it were written by hand.
+ * <p/>
+ * The grammar, with the usual precedence:
+ * <pre>
+ *   or      := and ('||' and)*
+ *   and     := not ('&&' not)*
+ *   not     := '!' not | compare
+ *   compare := sum (('==' | '!=' | '<' | '<=' | '>' | '>=') sum)?
+ *   sum     := product (('+' | '-') product)*
+ *   product := unary (('*' | '/' | '%') unary)*
+ *   unary   := '-' unary | primary
+ *   primary := number | 'string' | column | $N | function '(' or (',' or)* ')' | '(' or ')'
+ * </pre>
+ * Columns are referred by their name in the header or by position, as
+ * {@code $1} for the first one. The fields are numbers unless compared with
+ * a string literal. The functions are the ones of {@link Math} taking
+ * one or two doubles, such as sqrt, abs, pow, min, max, log, exp or floor.
+ */
+class ExpressionCompiler {
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private enum Kind {NUMBER, CONDITION, FIELD, STRING}
+
+    /**
+     * A compiled subexpression: a handle taking the fields of the line.
+     */
+    private static class Node {
+        final Kind kind;
+        final MethodHandle handle;
+
+        Node(Kind kind, MethodHandle handle) {
+            this.kind = kind;
+            this.handle = handle;
+        }
+    }
+
+    private final String[] header;
+    // the position of each column name, the first one if repeated
+    private final Map<String, Integer> positions = new HashMap<>();
+    private String text;
+    private int pos;
+
+    /**
+     * @param header the column names, null if the columns are referred by position
+     */
+    ExpressionCompiler(String[] header) {
+        this.header = header;
+        if (header != null)
+            for (int i = header.length - 1; i >= 0; i--)
+                positions.put(header[i], i);
+    }
+
+    /**
+     * @return a handle of type {@code (String[])double}
+     */
+    MethodHandle compileNumber(String expression) {
+        return number(parse(expression));
+    }
+
+    /**
+     * @return a handle of type {@code (String[])boolean}
+     */
+    MethodHandle compileCondition(String expression) {
+        Node node = parse(expression);
+        checkArgument(node.kind == Kind.CONDITION, "\"%s\" is not a condition", expression);
+        return node.handle;
+    }
+
+    private Node parse(String expression) {
+        text = expression;
+        pos = 0;
+        Node node = or();
+        skipSpaces();
+        checkArgument(pos == text.length(), "Unexpected \"%s\" at %s in \"%s\"", text.substring(pos), pos, text);
+        return node;
+    }
+
+    private Node or() {
+        Node left = and();
+        while (accept("||")) {
+            MethodHandle right = condition(and());
+            // short circuit: the right side is evaluated only if the left one is false
+            left = new Node(Kind.CONDITION, MethodHandles.guardWithTest(condition(left), constant(true), right));
+        }
+        return left;
+    }
+
+    private Node and() {
+        Node left = not();
+        while (accept("&&")) {
+            MethodHandle right = condition(not());
+            left = new Node(Kind.CONDITION, MethodHandles.guardWithTest(condition(left), right, constant(false)));
+        }
+        return left;
+    }
+
+    private Node not() {
+        if (accept("!"))
+            return new Node(Kind.CONDITION, MethodHandles.filterReturnValue(condition(not()), operator("not", boolean.class)));
+        return compare();
+    }
+
+    private Node compare() {
+        Node left = sum();
+        for (String op : new String[]{"==", "!=", "<=", ">=", "<", ">"}) {
+            if (accept(op)) {
+                Node right = sum();
+                if (left.kind == Kind.STRING || right.kind == Kind.STRING) {
+                    checkArgument(op.equals("==") || op.equals("!="), "Strings can only be compared with == and !=, in \"%s\"", text);
+                    MethodHandle equals = combine(operator("equals", String.class), string(left), string(right));
+                    return new Node(Kind.CONDITION, op.equals("==") ? equals
+                            : MethodHandles.filterReturnValue(equals, operator("not", boolean.class)));
+                }
+                String name = op.equals("==") ? "eq" : op.equals("!=") ? "ne" : op.equals("<=") ? "le"
+                        : op.equals(">=") ? "ge" : op.equals("<") ? "lt" : "gt";
+                return new Node(Kind.CONDITION, combine(operator(name, double.class), number(left), number(right)));
+            }
+        }
+        return left;
+    }
+
+    private Node sum() {
+        Node left = product();
+        while (true) {
+            if (accept("+"))
+                left = arithmetic("add", left, product());
+            else if (accept("-"))
+                left = arithmetic("sub", left, product());
+            else
+                return left;
+        }
+    }
+
+    private Node product() {
+        Node left = unary();
+        while (true) {
+            if (accept("*"))
+                left = arithmetic("mul", left, unary());
+            else if (accept("/"))
+                left = arithmetic("div", left, unary());
+            else if (accept("%"))
+                left = arithmetic("rem", left, unary());
+            else
+                return left;
+        }
+    }
+
+    private Node unary() {
+        if (accept("-"))
+            return new Node(Kind.NUMBER, MethodHandles.filterReturnValue(number(unary()), operator("neg", double.class)));
+        return primary();
+    }
+
+    private Node primary() {
+        skipSpaces();
+        checkArgument(pos < text.length(), "Unexpected end of \"%s\"", text);
+        char c = text.charAt(pos);
+        if (accept("(")) {
+            Node node = or();
+            expect(")");
+            return node;
+        }
+        if (c == '\'') {
+            int end = text.indexOf('\'', pos + 1);
+            checkArgument(end > 0, "Unterminated string at %s in \"%s\"", pos, text);
+            String value = text.substring(pos + 1, end);
+            pos = end + 1;
+            return new Node(Kind.STRING, MethodHandles.dropArguments(
+                    MethodHandles.constant(String.class, value), 0, String[].class));
+        }
+        if (c == '$') {
+            pos++;
+            int start = pos;
+            while (pos < text.length() && Character.isDigit(text.charAt(pos)))
+                pos++;
+            checkArgument(pos > start, "Column number expected at %s in \"%s\"", start, text);
+            return field(Integer.parseInt(text.substring(start, pos)) - 1);
+        }
+        if (Character.isDigit(c) || c == '.') {
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'))
+                pos++;
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-'))
+                    pos++;
+                while (pos < text.length() && Character.isDigit(text.charAt(pos)))
+                    pos++;
+            }
+            double value = Double.parseDouble(text.substring(start, pos));
+            return new Node(Kind.NUMBER, MethodHandles.dropArguments(
+                    MethodHandles.constant(double.class, value), 0, String[].class));
+        }
+        checkArgument(Character.isJavaIdentifierStart(c), "Unexpected '%s' at %s in \"%s\"", c, pos, text);
+        int start = pos;
+        while (pos < text.length() && Character.isJavaIdentifierPart(text.charAt(pos)))
+            pos++;
+        String name = text.substring(start, pos);
+        if (accept("("))
+            return function(name);
+        checkArgument(header != null, "Column %s referred by name but the file has no header, use $N", name);
+        Integer position = positions.get(name);
+        checkArgument(position != null, "Unknown column %s in \"%s\"", name, text);
+        return field(position);
+    }
+
+    private Node function(String name) {
+        List<MethodHandle> args = new ArrayList<>();
+        if (!accept(")")) {
+            do {
+                args.add(number(or()));
+            } while (accept(","));
+            expect(")");
+        }
+        Class<?>[] types = new Class<?>[args.size()];
+        Arrays.fill(types, double.class);
+        MethodHandle function;
+        try {
+            function = lookup.findStatic(Math.class, name, MethodType.methodType(double.class, types));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Unknown function " + name + " with " + args.size() + " arguments", e);
+        }
+        return new Node(Kind.NUMBER, combine(function, args.toArray(new MethodHandle[args.size()])));
+    }
+
+    private Node field(int index) {
+        checkArgument(index >= 0, "Columns are numbered from $1, in \"%s\"", text);
+        checkArgument(header == null || index < header.length, "Column $%s out of the %s columns", index + 1,
+                header == null ? 0 : header.length);
+        MethodHandle getter = MethodHandles.insertArguments(MethodHandles.arrayElementGetter(String[].class), 1, index);
+        return new Node(Kind.FIELD, getter);
+    }
+
+    private Node arithmetic(String name, Node left, Node right) {
+        return new Node(Kind.NUMBER, combine(operator(name, double.class), number(left), number(right)));
+    }
+
+    private MethodHandle number(Node node) {
+        switch (node.kind) {
+            case NUMBER:
+                return node.handle;
+            case FIELD:
+                return MethodHandles.filterReturnValue(node.handle, operator("parse", String.class));
+            default:
+                throw new IllegalArgumentException("Number expected in \"" + text + "\"");
+        }
+    }
+
+    private MethodHandle condition(Node node) {
+        checkArgument(node.kind == Kind.CONDITION, "Condition expected in \"%s\"", text);
+        return node.handle;
+    }
+
+    private MethodHandle string(Node node) {
+        checkArgument(node.kind == Kind.FIELD || node.kind == Kind.STRING, "Strings can only be compared with columns, in \"%s\"", text);
+        return node.handle;
+    }
+
+    /**
+     * @return the function applied to the results of the arguments, all of
+     * them evaluated on the same line
+     */
+    private static MethodHandle combine(MethodHandle function, MethodHandle... arguments) {
+        MethodHandle filtered = MethodHandles.filterArguments(function, 0, arguments);
+        return MethodHandles.permuteArguments(filtered,
+                MethodType.methodType(function.type().returnType(), String[].class), new int[arguments.length]);
+    }
+
+    private static MethodHandle constant(boolean value) {
+        return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, value), 0, String[].class);
+    }
+
+    private static MethodHandle operator(String name, Class<?> type) {
+        try {
+            for (Method method : Operators.class.getDeclaredMethods())
+                if (method.getName().equals(name) && method.getParameterTypes()[0] == type)
+                    return lookup.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        throw new IllegalStateException("No operator " + name);
+    }
+
+    private boolean accept(String token) {
+        skipSpaces();
+        if (!text.startsWith(token, pos))
+            return false;
+        pos += token.length();
+        return true;
+    }
+
+    private void expect(String token) {
+        checkArgument(accept(token), "Expected '%s' at %s in \"%s\"", token, pos, text);
+    }
+
+    private void skipSpaces() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            pos++;
+    }
+
+    /**
+     * The leaves of the handle trees.
+     */
+    private static class Operators {
+        static double parse(String s) {
+            return Double.parseDouble(s);
+        }
+
+        static double add(double a, double b) {
+            return a + b;
+        }
+
+        static double sub(double a, double b) {
+            return a - b;
+        }
+
+        static double mul(double a, double b) {
+            return a * b;
+        }
+
+        static double div(double a, double b) {
+            return a / b;
+        }
+
+        static double rem(double a, double b) {
+            return a % b;
+        }
+
+        static double neg(double a) {
+            return -a;
+        }
+
+        static boolean eq(double a, double b) {
+            return a == b;
+        }
+
+        static boolean ne(double a, double b) {
+            return a != b;
+        }
+
+        static boolean lt(double a, double b) {
+            return a < b;
+        }
+
+        static boolean le(double a, double b) {
+            return a <= b;
+        }
+
+        static boolean gt(double a, double b) {
+            return a > b;
+        }
+
+        static boolean ge(double a, double b) {
+            return a >= b;
+        }
+
+        static boolean not(boolean a) {
+            return !a;
+        }
+
+        static boolean equals(String a, String b) {
+            return a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Off-heap table from a key fingerprint to the sequence of the last row
+ * with that key, used by the {@link Deduplicator}.
+ * <p/>
+ * Each fingerprint hashes to a bucket of {@link #WAYS} slots of 16 bytes
+ * (fingerprint, sequence). The entries older than the window count as free;
+ * when a bucket has no free slot the oldest entry is replaced, so a key can
+ * be forgotten before the end of the window, never kept after it.
+ */
+class FingerprintTable {
+    static final int WAYS = 4;
+    private static final int SLOT = 16;
+    private final ByteBuffer table;
+    private final int bucketMask;
+
+    /**
+     * @param capacity the number of keys in the window
+     */
+    FingerprintTable(int capacity) {
+        checkArgument(capacity > 0, "Invalid capacity %s", capacity);
+        // half full on average
+        int buckets = 1;
+        while ((long) buckets * WAYS < 2L * capacity)
+            buckets <<= 1;
+        this.bucketMask = buckets - 1;
+        this.table = ByteBuffer.allocateDirect(buckets * WAYS * SLOT).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Records the sequence as the last one of the fingerprint.
+     *
+     * @param oldest the first sequence still in the window
+     * @return the previous sequence of the fingerprint in the window, -1 if none
+     */
+    long put(long fingerprint, long sequence, long oldest) {
+        // 0 marks the empty slots
+        if (fingerprint == 0)
+            fingerprint = 1;
+        int base = (int) ((fingerprint ^ (fingerprint >>> 32)) & bucketMask) * WAYS * SLOT;
+        int victim = base;
+        long victimSequence = Long.MAX_VALUE;
+        for (int offset = base; offset < base + WAYS * SLOT; offset += SLOT) {
+            long fp = table.getLong(offset);
+            long seq = table.getLong(offset + 8);
+            boolean free = fp == 0 || seq < oldest;
+            if (!free && fp == fingerprint) {
+                table.putLong(offset + 8, sequence);
+                return seq;
+            }
+            long age = free ? -1 : seq;
+            if (age < victimSequence) {
+                victim = offset;
+                victimSequence = age;
+            }
+        }
+        table.putLong(victim, fingerprint);
+        table.putLong(victim + 8, sequence);
+        return -1;
+    }
+}
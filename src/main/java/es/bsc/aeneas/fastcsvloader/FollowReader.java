@@ -0,0 +1,179 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Reads a file while it is still being written, as {@code tail -f} does.
+ * <p/>
+ * Only the complete lines are mapped. Once they are read {@link #hasNext()}
+ * waits for the file to grow, woken up by a {@link WatchService} or, on the
+ * file systems that don't notify the changes, every {@code follow.poll} ms
+ * (default 1000). Meanwhile the consumers flush their batches, so the rows
+ * reach Cassandra a few seconds after being written.
+ * <p/>
+ * The reading ends when the file doesn't grow for {@code follow.idle}
+ * seconds (default 60, 0 to follow it forever) or when {@link #stop()} is
+ * called. A last line with no newline is read then.
+ */
+public class FollowReader extends MappedReader {
+    private final static Logger log = LoggerFactory.getLogger(FollowReader.class);
+
+    private final long pollMs;
+    private final long idleMs;
+    private WatchService watcher;
+    private long mapped;
+    private volatile boolean stopped = false;
+    private boolean completed = false;
+
+    public FollowReader(File file, char FS, boolean header) throws IOException {
+        this(file, FS, header, Long.getLong("follow.poll", 1000), Long.getLong("follow.idle", 60) * 1000);
+    }
+
+    /**
+     * @param file   a file containing at least its first line
+     * @param idleMs the time without growing after which the file is
+     *               considered complete, 0 to follow it until stopped
+     */
+    public FollowReader(File file, char FS, boolean header, long pollMs, long idleMs) throws IOException {
+        this(file, FS, header, pollMs, idleMs, firstLines(file));
+    }
+
+    /**
+     * The first line tells the number of fields, it must be complete.
+     */
+    private static long firstLines(File file) throws IOException {
+        long end = completeLines(file, 0);
+        checkArgument(end > 0, "%s has no complete line yet", file);
+        return end;
+    }
+
+    private FollowReader(File file, char FS, boolean header, long pollMs, long idleMs, long end) throws IOException {
+        super(file, FS, header, 0, end);
+        this.pollMs = pollMs;
+        this.idleMs = idleMs;
+        this.mapped = end;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.getAbsoluteFile().getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.info("No notifications for {}, polling its size every {} ms", file, pollMs);
+            watcher = null;
+        }
+    }
+
+    /**
+     * Waits until a complete line is available or the file is completed.
+     */
+    @Override
+    public boolean hasNext() {
+        try {
+            while (!super.hasNext()) {
+                if (completed || !waitForLines())
+                    return false;
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Ends the reading once the lines already written are read.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return false if the file is completed
+     */
+    private boolean waitForLines() throws IOException, InterruptedException {
+        long lastGrowth = System.currentTimeMillis();
+        long size = trajectory.length();
+        while (true) {
+            // read before the size: the lines written before stop() are not lost
+            boolean stop = stopped;
+            long current = trajectory.length();
+            checkState(current >= mapped, "%s has been truncated from %s to %s bytes", trajectory, mapped, current);
+            if (current > size) {
+                size = current;
+                lastGrowth = System.currentTimeMillis();
+            }
+            long complete = completeLines(trajectory, mapped);
+            if (complete > mapped) {
+                extend(complete);
+                mapped = complete;
+                return true;
+            }
+            if (stop || idleMs > 0 && System.currentTimeMillis() - lastGrowth >= idleMs) {
+                if (size > mapped) {
+                    // the last line, with no newline
+                    extend(size);
+                    mapped = size;
+                    return true;
+                }
+                log.info("{} completed at {} bytes", trajectory, mapped);
+                completed = true;
+                close();
+                return false;
+            }
+            if (watcher == null) {
+                Thread.sleep(pollMs);
+            } else {
+                WatchKey key = watcher.poll(pollMs, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    // any change in the directory, the size tells if it was this file
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+    }
+
+    private void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /**
+     * @return the offset following the last newline of the file, or from if
+     * there is no newline after it
+     */
+    static long completeLines(File file, long from) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            byte[] buffer = new byte[64 << 10];
+            long chunkEnd = size;
+            while (chunkEnd > from) {
+                int length = (int) Math.min(buffer.length, chunkEnd - from);
+                long chunkStart = chunkEnd - length;
+                raf.seek(chunkStart);
+                raf.readFully(buffer, 0, length);
+                for (int i = length - 1; i >= 0; i--)
+                    if (buffer[i] == '\n')
+                        return chunkStart + i + 1;
+                chunkEnd = chunkStart;
+            }
+            return from;
+        }
+    }
+}
@@ -17,11 +17,20 @@ public class FrameEventProducer implements Runnable{
                 @Override
                 public void translateTo(String[] event, long sequence, TrajectoryReader bb) {
                     log.trace("Translating sequence {}", sequence);
-                    bb.next(event);
+                    try {
+                        bb.next(event);
+                    } catch (RuntimeException e) {
+                        // the slot is published anyway: the consumers must not take it for a line
+                        if (event.length > 0)
+                            event[0] = null;
+                        throw e;
+                    }
                 }
             };
 
     private final RingBuffer<String[]> ringBuffer;
+    private volatile long published = 0;
+    private volatile Throwable failure = null;
 
 //    @Inject
     public FrameEventProducer(RingBuffer<String[]> ringBuffer,TrajectoryReader trajectoryReader) {
@@ -45,10 +54,39 @@ public class FrameEventProducer implements Runnable{
      */
     @Override
     public void run() {
-        while (trajectoryReader.hasNext()) {
-            ringBuffer.publishEvent(TRANSLATOR, trajectoryReader);
+        long count = 0;
+        try {
+            while (trajectoryReader.hasNext()) {
+                ringBuffer.publishEvent(TRANSLATOR, trajectoryReader);
+                published = ++count;
+            }
+            log.info("Reading completed: {} lines published", count);
+        } catch (Throwable t) {
+            failure = t;
+            log.error("Reading failed after {} lines", count, t);
         }
-        log.info("Reading completed");
+    }
+
+    /**
+     * @return the number of lines published in the ring buffer so far
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return the error that stopped the reading, null if the file was read
+     * completely. Valid once {@link #run()} has returned.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return false for the slot published when the reading of a line failed
+     */
+    public static boolean isLine(String[] event) {
+        return event.length == 0 || event[0] != null;
     }
 }
 
@@ -0,0 +1,123 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.TableMetadata;
+import com.google.common.base.Joiner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The INSERT derived from a table name and the header of the CSV file: the
+ * bound columns follow the order of the header, so each field is converted
+ * with the parser of its own column.
+ * <p/>
+ * The names of the header follow the CQL rules: they are case insensitive
+ * unless they are double quoted. They are quoted in the query, so reserved
+ * words and case sensitive names can be used.
+ */
+public class InsertPlan {
+    private final static Logger log = LoggerFactory.getLogger(InsertPlan.class);
+    private final static Pattern CREATE_TABLE = Pattern.compile(
+            "\\s*create +table +(if +not +exists +)?(?<keyspace>[^. ]+)\\.(?<table>[^. (]+).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    public final String keyspace;
+    public final String table;
+    /**
+     * The names of the bound columns, as stored by Cassandra.
+     */
+    public final String[] columns;
+    public final String query;
+
+    InsertPlan(String keyspace, String table, String[] columns) {
+        this.keyspace = checkNotNull(keyspace);
+        this.table = checkNotNull(table);
+        this.columns = columns;
+        List<String> quoted = new ArrayList<>(columns.length);
+        for (String column : columns)
+            quoted.add(Metadata.quote(column));
+        this.query = "INSERT INTO " + Metadata.quote(keyspace) + "." + Metadata.quote(table)
+                + " (" + Joiner.on(',').join(quoted) + ")"
+                + " VALUES (" + Joiner.on(',').join(Collections.nCopies(columns.length, "?")) + ")";
+    }
+
+    /**
+     * @param keyspaceTable the name of the table as {@code keyspace.table}
+     * @return keyspace and table
+     */
+    public static String[] splitName(String keyspaceTable) {
+        String[] name = keyspaceTable.trim().split("\\.");
+        checkArgument(name.length == 2 && !name[0].isEmpty() && !name[1].isEmpty(),
+                "Expected keyspace.table, found %s", keyspaceTable);
+        return name;
+    }
+
+    /**
+     * @return the name as stored by Cassandra: lower case unless double quoted
+     */
+    static String internalName(String name) {
+        name = name.trim();
+        if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+            return name.substring(1, name.length() - 1).replace("\"\"", "\"");
+        return name.toLowerCase();
+    }
+
+    /**
+     * Checks the header against the table metadata fetched from the cluster.
+     */
+    public static InsertPlan fromCluster(Metadata metadata, String keyspace, String table, String[] header) {
+        KeyspaceMetadata ks = metadata.getKeyspace(keyspace);
+        checkArgument(ks != null, "Keyspace %s not found", keyspace);
+        TableMetadata tm = ks.getTable(table);
+        checkArgument(tm != null, "Table %s.%s not found", keyspace, table);
+        String[] columns = new String[header.length];
+        List<String> unknown = new ArrayList<>();
+        for (int i = 0; i < header.length; i++) {
+            ColumnMetadata column = tm.getColumn(Metadata.quote(internalName(header[i])));
+            if (column == null)
+                unknown.add(header[i]);
+            else
+                columns[i] = column.getName();
+        }
+        checkArgument(unknown.isEmpty(), "Columns %s not found in %s.%s", unknown, keyspace, table);
+        List<String> missing = new ArrayList<>();
+        for (ColumnMetadata key : tm.getPrimaryKey())
+            if (!Arrays.asList(columns).contains(key.getName()))
+                missing.add(key.getName());
+        checkArgument(missing.isEmpty(), "The header doesn't contain the primary key columns %s", missing);
+        return log(new InsertPlan(ks.getName(), tm.getName(), columns));
+    }
+
+    /**
+     * Offline version for the SSTable writer: the columns are validated by
+     * Cassandra when the INSERT is prepared against the schema.
+     *
+     * @param schema the CREATE TABLE statement
+     */
+    public static InsertPlan fromSchema(String schema, String[] header) {
+        Matcher matcher = CREATE_TABLE.matcher(schema);
+        checkArgument(matcher.matches(), "Impossible to detect keyspace and table name from the schema");
+        String[] columns = new String[header.length];
+        for (int i = 0; i < header.length; i++)
+            columns[i] = internalName(header[i]);
+        return log(new InsertPlan(internalName(matcher.group("keyspace")), internalName(matcher.group("table")), columns));
+    }
+
+    private static InsertPlan log(InsertPlan plan) {
+        log.info("Derived the query \"{}\"", plan.query);
+        return plan;
+    }
+
+}
@@ -0,0 +1,248 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import es.bsc.aeneas.fastcsvloader.distributed.ByteRange;
+import es.bsc.aeneas.fastcsvloader.distributed.LoadCoordinator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Dry run of a load on a sample of the file, to find the bottleneck and
+ * estimate the time of the whole load before running it.
+ * <p/>
+ * The file is split in line aligned ranges of {@code profile.rangeSize} MB
+ * (default 4) and {@code profile.sample} percent of them (default 1), evenly
+ * spread, go through each stage of the load on a single thread: reading,
+ * conversion (with the {@link RowTransform} if any), binding and, only if
+ * {@code profile.write} is true, the insertion. The inserted rows are
+ * upserted again by the real load.
+ */
+public class LoadProfiler {
+    private final static Logger log = LoggerFactory.getLogger(LoadProfiler.class);
+    private static final int CHUNK = 4096;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final File file;
+    private final char FS;
+    private final boolean header;
+    private final CqlFrameLoader loader;
+
+    public LoadProfiler(File file, char FS, boolean header, CqlFrameLoader loader) {
+        this.file = file;
+        this.FS = FS;
+        this.header = header;
+        this.loader = loader;
+    }
+
+    /**
+     * @param percent    the percentage of the ranges to profile
+     * @param write      if true the sampled rows are inserted
+     * @param nConsumers the consumers configured for the load
+     */
+    public Report run(double percent, boolean write, int nConsumers) throws Exception {
+        long rangeSize = Long.getLong("profile.rangeSize", 4) << 20;
+        List<ByteRange> ranges = sample(LoadCoordinator.split(Collections.singletonList(file), rangeSize, header), percent);
+        log.info("Profiling {} ranges of {}", ranges.size(), file);
+        Report report = new Report(file.length(), write, nConsumers, Runtime.getRuntime().availableProcessors());
+        for (ByteRange range : ranges) {
+            report.bytes += range.size();
+            profile(new MappedReader(file, FS, header, range.start, range.end), write, report);
+        }
+        report.complete();
+        return report;
+    }
+
+    /**
+     * Runs the stages one after the other on chunks of lines, so each one is
+     * timed alone and the sample is never held in memory.
+     */
+    private void profile(MappedReader reader, boolean write, Report report) throws Exception {
+        String[][] lines = new String[CHUNK][reader.numberOfFields];
+        Object[][] values = new Object[CHUNK][];
+        BoundStatement[] statements = new BoundStatement[CHUNK];
+        while (reader.hasNext()) {
+            long start = System.nanoTime(), allocated = allocated();
+            int n = 0;
+            while (n < CHUNK && reader.hasNext())
+                reader.next(lines[n++]);
+            report.read.add(start, allocated, n);
+
+            start = System.nanoTime();
+            allocated = allocated();
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                values[kept] = loader.convert(lines[i]);
+                if (values[kept] != null)
+                    kept++;
+            }
+            report.convert.add(start, allocated, n);
+            report.rows += n;
+            report.filtered += n - kept;
+
+            start = System.nanoTime();
+            allocated = allocated();
+            for (int i = 0; i < kept; i++)
+                statements[i] = loader.query.bind(values[i]);
+            report.bind.add(start, allocated, kept);
+
+            if (write) {
+                start = System.nanoTime();
+                allocated = allocated();
+                BatchStatement batch = new BatchStatement();
+                for (int i = 0; i < kept; i++) {
+                    batch.add(statements[i]);
+                    if (batch.size() == DisruptorTuner.CALIBRATION_BATCH || i == kept - 1) {
+                        loader.insertBatch(batch);
+                        batch = new BatchStatement();
+                    }
+                }
+                report.write.add(start, allocated, kept);
+            }
+        }
+    }
+
+    /**
+     * @return the ranges evenly spread over the list, at least one
+     */
+    static List<ByteRange> sample(List<ByteRange> ranges, double percent) {
+        checkArgument(percent > 0 && percent <= 100, "Invalid sample percentage %s", percent);
+        List<ByteRange> sample = new ArrayList<>();
+        double step = 100 / percent;
+        for (double i = 0; i < ranges.size(); i += step)
+            sample.add(ranges.get((int) i));
+        return sample;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, 0 if the JVM can't tell
+     */
+    private static long allocated() {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    /**
+     * The time and the memory allocated by a stage, per row it handled: the
+     * bind and the write only see the rows kept by the filter.
+     */
+    public static class Stage {
+        public final String name;
+        long ns = 0;
+        long allocated = 0;
+        long rows = 0;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void add(long start, long allocatedBefore, int n) {
+            ns += System.nanoTime() - start;
+            allocated += allocated() - allocatedBefore;
+            rows += n;
+        }
+
+        public long nsPerRow() {
+            return rows == 0 ? 0 : ns / rows;
+        }
+
+        public long bytesPerRow() {
+            return rows == 0 ? 0 : allocated / rows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %10d ns/row %12d rows/s %8d B/row allocated", name, nsPerRow(),
+                    nsPerRow() == 0 ? 0 : 1000000000L / nsPerRow(), bytesPerRow());
+        }
+    }
+
+    public static class Report {
+        public final Stage read = new Stage("read");
+        public final Stage convert = new Stage("convert");
+        public final Stage bind = new Stage("bind");
+        public final Stage write = new Stage("write");
+        final long fileSize;
+        final boolean written;
+        final int nConsumers;
+        final int cores;
+        long bytes = 0;
+        long rows = 0;
+        long filtered = 0;
+        public long estimatedRows;
+        public int recommendedConsumers;
+        public DisruptorTuner.Calibration recommended;
+        public long etaSeconds;
+
+        Report(long fileSize, boolean written, int nConsumers, int cores) {
+            this.fileSize = fileSize;
+            this.written = written;
+            this.nConsumers = nConsumers;
+            this.cores = cores;
+        }
+
+        /**
+         * The reader is a single thread and the consumers share the rest of
+         * the work: enough consumers keep up with the reader, as long as
+         * there are cores for them. The size of the ring is then chosen as
+         * the auto wait strategy does.
+         */
+        void complete() {
+            long rowBytes = rows == 0 ? 0 : bytes / rows;
+            estimatedRows = rowBytes == 0 ? 0 : fileSize / rowBytes;
+            long producerNs = read.nsPerRow();
+            long consumerNs = consumerNs();
+            int maxConsumers = 1;
+            while (maxConsumers * 2 < cores)
+                maxConsumers <<= 1;
+            recommendedConsumers = 1;
+            while (recommendedConsumers < maxConsumers && consumerNs / recommendedConsumers > producerNs)
+                recommendedConsumers <<= 1;
+            recommended = DisruptorTuner.choose(producerNs, consumerNs, recommendedConsumers, cores);
+            long rowNs = Math.max(producerNs, consumerNs / recommendedConsumers);
+            etaSeconds = estimatedRows * rowNs / 1000000000L;
+        }
+
+        /**
+         * @return the time of the consumers per line read, the filtered lines included
+         */
+        public long consumerNs() {
+            return rows == 0 ? 0 : (convert.ns + bind.ns + (written ? write.ns : 0)) / rows;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Profiled %d rows (%d bytes, %d bytes/row), %d filtered out%n",
+                    rows, bytes, rows == 0 ? 0 : bytes / rows, filtered));
+            sb.append(read).append(String.format("%n"));
+            sb.append(convert).append(String.format("%n"));
+            sb.append(bind).append(String.format("%n"));
+            if (written)
+                sb.append(write).append(String.format("%n"));
+            else
+                sb.append(String.format("write    not measured, set profile.write=true to include Cassandra%n"));
+            // without Cassandra the consumers are faster than they will be
+            String bound = written ? "" : " (lower bound, write not measured)";
+            sb.append(String.format("Bottleneck%s: %s%n", bound, read.nsPerRow() >= consumerNs() / recommendedConsumers
+                    ? "the reader" : "the consumers (" + consumerNs() + " ns/row)"));
+            sb.append(String.format("Estimated %d rows in %d bytes, %s%d s with %d consumers%n",
+                    estimatedRows, fileSize, written ? "" : "at least ", etaSeconds, recommendedConsumers));
+            sb.append(String.format("Recommended%s: -Ddisruptor.consumers=%d -DbufferSize=%d -Ddisruptor.waitStrategy=%s",
+                    bound, recommendedConsumers, recommended.bufferSize, recommended.waitStrategy));
+            if (recommendedConsumers != nConsumers)
+                sb.append(String.format(" (currently %d consumers)", nConsumers));
+            return sb.toString();
+        }
+    }
+}
@@ -17,6 +17,8 @@ import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.NoSuchElementException;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * @author ccugnasc
  *         This class read only the text but doesn't convert to numbers.
@@ -26,11 +28,13 @@ public class MappedReader extends TrajectoryReader {
 
     private final static Logger log = LoggerFactory.getLogger(MappedReader.class);
     private final File trajfile;
-    private final long filesize;
+    // offset where the reading stops, the file size unless reading a range
+    private long end;
     private FileChannel fc0;
     private MappedByteBuffer buffer;
-    private final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
-    private final boolean windowed;
+    // bounded by the memory budget, if any
+    private final int MAX_WINDOW_SIZE = MemoryBudget.mappedWindow();
+    private boolean windowed;
     private long position = 0;
     private final int MAX_LINE_SIZE=Integer.getInteger("maxLineSize",256);
 
@@ -38,26 +42,57 @@ public class MappedReader extends TrajectoryReader {
 
 
     public MappedReader(File trajfile, char FS) throws IOException {
-        super(trajfile, FS);
+        this(trajfile, FS, false);
+    }
+
+    public MappedReader(File trajfile, char FS, boolean header) throws IOException {
+        this(trajfile, FS, header, 0, trajfile.length());
+    }
+
+    /**
+     * Reads only the lines between start and end, used to split a file
+     * between several loaders.
+     *
+     * @param start offset of the beginning of a line
+     * @param end   offset following the end of a line, or the file size
+     */
+    public MappedReader(File trajfile, char FS, boolean header, long start, long end) throws IOException {
+        super(trajfile, FS, header);
+        checkArgument(0 <= start && start <= end && end <= trajfile.length(),
+                "Invalid range [%s,%s) for a file of %s bytes", start, end, trajfile.length());
         this.trajfile = trajfile;
-        this.filesize = trajfile.length();
+        this.end = end;
+        this.position = start;
         fc0 = new FileInputStream(trajfile).getChannel();
-        if (filesize > MAX_WINDOW_SIZE) {
+        if (end - start > MAX_WINDOW_SIZE) {
             windowed = true;
-            buffer = fc0.map(FileChannel.MapMode.READ_ONLY, 0, MAX_WINDOW_SIZE);
+            buffer = fc0.map(FileChannel.MapMode.READ_ONLY, start, MAX_WINDOW_SIZE);
         } else {
             windowed = false;
-            buffer = fc0.map(FileChannel.MapMode.READ_ONLY, 0, filesize);
+            buffer = fc0.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+        // the mapping stays valid, no need to keep a descriptor for each range
+        fc0.close();
+        if (header && start == 0) {
+            //skipping the column names
+            while (buffer.remaining() > 0 && buffer.get() != '\n') ;
         }
 
     }
 
+    /**
+     * @return the offset in the file of the next byte to read
+     */
+    public long position() {
+        return position + buffer.position();
+    }
+
 
 
 
     public boolean hasNext() {
-        //To check
-        return buffer.remaining() > 0;
+        // the window may end exactly at the end of a line
+        return buffer.remaining() > 0 || rebuffer();
 
     }
 
@@ -113,28 +148,50 @@ public class MappedReader extends TrajectoryReader {
                 //else do nothing, it is just another white space
 
 
+            }
+            if (word) {
+                // the last line has no newline
+                f[xyz] = new String(point, 0, ppos);
             }
             return f;
 
 
         }
 
+    /**
+     * Extends the range to read up to a new end, for a file that has grown.
+     * The lines already read are not mapped again.
+     *
+     * @param newEnd offset following the end of a line, or the file size
+     */
+    protected void extend(long newEnd) throws IOException {
+        checkArgument(newEnd >= end && newEnd <= trajfile.length(),
+                "Invalid end %s, the range ends at %s in a file of %s bytes", newEnd, end, trajfile.length());
+        position += buffer.position();
+        end = newEnd;
+        windowed = end - position > MAX_WINDOW_SIZE;
+        fc0 = new FileInputStream(trajfile).getChannel();
+        buffer = fc0.map(FileChannel.MapMode.READ_ONLY, position, Math.min(end - position, MAX_WINDOW_SIZE));
+        fc0.close();
+    }
+
     private boolean rebuffer() {
-        if (!windowed) {
+        if (!windowed || position + buffer.limit() >= end) {
             //No need to rebuffer, the file is complete
             return false;
         } else {
-            position += MAX_WINDOW_SIZE;
+            position += buffer.limit();
             long size;
-            if (filesize - position > MAX_WINDOW_SIZE)
+            if (end - position > MAX_WINDOW_SIZE)
                 size = MAX_WINDOW_SIZE;
             else
-                size = filesize - position;
+                size = end - position;
             log.info("ReBuffering with a new position {} with size {}", position, size);
             try {
                 fc0.close();
                 fc0 = new FileInputStream(trajfile).getChannel();
                 buffer = fc0.map(FileChannel.MapMode.READ_ONLY, position, size);
+                fc0.close();
             } catch (IOException e) {
                 log.error("IOException", e);
                 throw new AssertionError(e);
@@ -0,0 +1,154 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bounds the memory used by a load, set with {@code memory.budget} (MB), so
+ * it slows down instead of being killed when the memory is limited. The heap
+ * (-Xmx) must leave room for the budget plus the JVM and the driver.
+ * <p/>
+ * The budget is shared as follows:
+ * <ul>
+ * <li>a quarter for the window of the file mapped by {@link MappedReader}</li>
+ * <li>a quarter for the lines held by the ring buffer, whose size is reduced
+ * if needed</li>
+ * <li>half for the rows in the batches being built or sent: the consumers
+ * block when it is exhausted, so the ring fills up and the reader blocks
+ * too</li>
+ * </ul>
+ * The SSTableWriter uses the last half for the CQLSSTableWriter, whose heap
+ * is a few times the data it buffers.
+ */
+public class MemoryBudget {
+    private final static Logger log = LoggerFactory.getLogger(MemoryBudget.class);
+    static final int MIN_BUFFER_SIZE = 64;
+    // the unit of the permits, int permits of 1 byte would overflow
+    private static final int UNIT = 64;
+    private static MemoryBudget instance = null;
+
+    public final long total;
+    private final int permits;
+    private final Semaphore rows;
+
+    public MemoryBudget(long total) {
+        checkArgument(total >= 4 << 20, "A memory budget of %s bytes is too small", total);
+        this.total = total;
+        this.permits = (int) Math.min(Integer.MAX_VALUE, total / 2 / UNIT);
+        this.rows = new Semaphore(permits);
+    }
+
+    /**
+     * @return the budget set by {@code memory.budget}, null if unbounded
+     */
+    public static synchronized MemoryBudget get() {
+        if (instance == null && System.getProperty("memory.budget") != null) {
+            instance = new MemoryBudget(Long.getLong("memory.budget") << 20);
+            log.info("Memory budget of {} MB", instance.total >> 20);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the size of the window mapped by the readers
+     */
+    public static int mappedWindow() {
+        MemoryBudget budget = get();
+        return budget == null ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, budget.total / 4);
+    }
+
+    /**
+     * @param bufferSize the size wanted, a power of 2
+     * @return the largest power of 2 up to bufferSize whose lines fit in the
+     * share of the ring
+     */
+    public int ringSize(int bufferSize, long rowBytes) {
+        return ringSize(bufferSize, rowBytes, MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * @param minSize the size the ring can't go below, e.g. to hold the
+     *                dedup window, even if it exceeds the share of the ring
+     */
+    public int ringSize(int bufferSize, long rowBytes, int minSize) {
+        int size = bufferSize;
+        while (size > MIN_BUFFER_SIZE && size >> 1 >= minSize && size * rowBytes > total / 4)
+            size >>= 1;
+        return size;
+    }
+
+    /**
+     * @return the size of the buffer of a CQLSSTableWriter
+     */
+    public int sstableBufferMB() {
+        return (int) Math.max(1, total / 2 / 4 >> 20);
+    }
+
+    /**
+     * @return the accounting of the rows of the given estimated size
+     */
+    public Rows rows(long rowBytes) {
+        return new Rows(rowBytes);
+    }
+
+    /**
+     * Accounts the rows in the batches, from their conversion until they
+     * are acknowledged.
+     */
+    public class Rows {
+        private final int rowPermits;
+
+        Rows(long rowBytes) {
+            // a row bigger than the budget must not block forever
+            this.rowPermits = (int) Math.min(permits, (rowBytes + UNIT - 1) / UNIT);
+        }
+
+        /**
+         * @return false if the budget is exhausted
+         */
+        public boolean tryAcquire() {
+            return rows.tryAcquire(rowPermits);
+        }
+
+        public void acquire() throws InterruptedException {
+            rows.acquire(rowPermits);
+        }
+
+        public void release(int n) {
+            rows.release(n * rowPermits);
+        }
+    }
+
+    /**
+     * @return the heap held by a parsed line: the array, its strings and
+     * their characters
+     */
+    public static long rowBytes(int fields, int lineBytes) {
+        return 16 + 4L * fields + 56L * fields + 2L * lineBytes;
+    }
+
+    /**
+     * @return the average length of the first lines of the file
+     */
+    public static int averageLineBytes(File file) throws IOException {
+        byte[] sample = new byte[64 << 10];
+        int read, n = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            while (n < sample.length && (read = in.read(sample, n, sample.length - n)) > 0)
+                n += read;
+        }
+        int lines = 0;
+        for (int i = 0; i < n; i++)
+            if (sample[i] == '\n')
+                lines++;
+        return lines == 0 ? n : n / lines;
+    }
+}
@@ -32,9 +32,15 @@ public class NIOReader extends TrajectoryReader {
 
 
     public NIOReader(File trajfile, char FS) throws IOException {
-        super(trajfile, FS);
+        this(trajfile, FS, false);
+    }
+
+    public NIOReader(File trajfile, char FS, boolean header) throws IOException {
+        super(trajfile, FS, header);
         scanner=new Scanner(trajfile);
         fs=FS+"";
+        if (header && scanner.hasNextLine())
+            scanner.nextLine();
 
     }
 
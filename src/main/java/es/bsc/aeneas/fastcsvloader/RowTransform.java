@@ -0,0 +1,129 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.google.common.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Filters the lines and computes new columns from their fields, between the
+ * reader and the {@link CqlTypeConverter}, so no other pass over the file is
+ * needed. The expressions are compiled once by {@link ExpressionCompiler}
+ * and evaluated by the consumer threads through their method handles.
+ * <p/>
+ * Configured with the properties:
+ * <ul>
+ * <li>{@code transform.filter}: the lines for which the condition is false
+ * are skipped, e.g. {@code par_type != 2}</li>
+ * <li>{@code transform.columns}: computed columns as {@code name=expression}
+ * separated by ';', e.g. {@code speed=sqrt(xvelo*xvelo+yvelo*yvelo+zvelo*zvelo)}.
+ * They are bound after the fields of the line</li>
+ * </ul>
+ */
+public class RowTransform {
+    private final static Logger log = LoggerFactory.getLogger(RowTransform.class);
+
+    private final MethodHandle filter;
+    private final String[] names;
+    private final MethodHandle[] columns;
+
+    /**
+     * @param filter  the condition, null to keep all the lines
+     * @param columns the computed columns, null or empty if none
+     * @param header  the column names of the file, null if it has no header
+     */
+    public RowTransform(String filter, String columns, String[] header) {
+        ExpressionCompiler compiler = new ExpressionCompiler(header);
+        this.filter = filter == null ? null : compiler.compileCondition(filter);
+        String[] definitions = columns == null || columns.trim().isEmpty() ? new String[0] : columns.split(";");
+        this.names = new String[definitions.length];
+        this.columns = new MethodHandle[definitions.length];
+        for (int i = 0; i < definitions.length; i++) {
+            int eq = definitions[i].indexOf('=');
+            checkArgument(eq > 0, "The computed column \"%s\" must be name=expression", definitions[i]);
+            names[i] = definitions[i].substring(0, eq).trim();
+            checkArgument(header == null || !Arrays.asList(header).contains(names[i]),
+                    "The computed column %s is already in the file", names[i]);
+            this.columns[i] = compiler.compileNumber(definitions[i].substring(eq + 1));
+        }
+    }
+
+    /**
+     * @return the transform configured by the properties, null if none
+     */
+    public static RowTransform fromProperties(String[] header) {
+        String filter = System.getProperty("transform.filter");
+        String columns = System.getProperty("transform.columns");
+        if (filter == null && columns == null)
+            return null;
+        RowTransform transform = new RowTransform(filter, columns, header);
+        log.info("Transform: filter {}, computed columns {}", filter, Arrays.toString(transform.names));
+        return transform;
+    }
+
+    /**
+     * @return false if the line must be skipped
+     */
+    public boolean accept(String[] fields) {
+        if (filter == null)
+            return true;
+        try {
+            return (boolean) filter.invokeExact(fields);
+        } catch (Throwable t) {
+            throw Throwables.propagate(t);
+        }
+    }
+
+    /**
+     * @return the number of computed columns
+     */
+    public int size() {
+        return columns.length;
+    }
+
+    /**
+     * @return the value of the computed column for the given line
+     */
+    public double compute(int column, String[] fields) {
+        try {
+            return (double) columns[column].invokeExact(fields);
+        } catch (Throwable t) {
+            throw Throwables.propagate(t);
+        }
+    }
+
+    /**
+     * @return the value of the computed column as the given type of the
+     * bound variable
+     */
+    public Object compute(int column, String[] fields, Class<?> type) {
+        double value = compute(column, fields);
+        if (type == Double.class)
+            return value;
+        if (type == Float.class)
+            return (float) value;
+        if (type == Integer.class)
+            return (int) value;
+        if (type == Long.class)
+            return (long) value;
+        if (type == String.class)
+            return Double.toString(value);
+        throw new IllegalArgumentException("Computed column " + names[column] + " can't be converted to " + type);
+    }
+
+    /**
+     * @return the header followed by the names of the computed columns, as
+     * they are bound
+     */
+    public String[] extend(String[] header) {
+        if (header == null || names.length == 0)
+            return header;
+        String[] extended = Arrays.copyOf(header, header.length + names.length);
+        System.arraycopy(names, 0, extended, header.length, names.length);
+        return extended;
+    }
+}
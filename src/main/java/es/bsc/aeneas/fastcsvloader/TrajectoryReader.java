@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Scanner;
 import java.util.StringTokenizer;
@@ -18,17 +19,38 @@ public abstract class TrajectoryReader implements Iterator<String[]> {
     protected final File trajectory;
     public final char FS;
     public final int numberOfFields;
+    /**
+     * The column names of the first line, null if the file has no header.
+     */
+    public final String[] header;
 
 
     public TrajectoryReader(File trajfile, char FS) throws FileNotFoundException {
+        this(trajfile, FS, false);
+    }
+
+    /**
+     * @param header if true the first line contains the column names and
+     *               it is not returned as a record
+     */
+    public TrajectoryReader(File trajfile, char FS, boolean header) throws FileNotFoundException {
         this.FS = checkNotNull(FS);
         log.info("Reading trajectory file {}", checkNotNull(trajfile).getAbsoluteFile());
         log.info("TrajectoryReader implementation: {}", this.getClass().getSimpleName());
         this.trajectory = trajfile;
         Scanner scanner = new Scanner(trajfile);
         String line = scanner.nextLine();
+        scanner.close();
         StringTokenizer tokenizer = new StringTokenizer(line, FS + "");
         this.numberOfFields = tokenizer.countTokens();
+        if (header) {
+            this.header = new String[numberOfFields];
+            for (int i = 0; i < numberOfFields; i++)
+                this.header[i] = tokenizer.nextToken().trim();
+            log.info("Header {}", Arrays.toString(this.header));
+        } else {
+            this.header = null;
+        }
 
 
     }
@@ -0,0 +1,267 @@
+package es.bsc.aeneas.fastcsvloader.columnar;
+
+import es.bsc.aeneas.fastcsvloader.MappedReader;
+import es.bsc.aeneas.fastcsvloader.RowTransform;
+import es.bsc.aeneas.fastcsvloader.TrajectoryReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Compiles a CSV file into a typed, column oriented binary file, so that the
+ * repeated loads of the same data don't tokenize and parse the text again,
+ * see {@link ColumnarReader}.
+ * <p/>
+ * The layout, little endian:
+ * <pre>
+ *   magic, version, number of columns, then for each column its type and name
+ *   chunks of columnar.chunkRows rows (default 65536), each column in a block:
+ *     fixed size types: the values
+ *     text: the end offset of each value, then the UTF-8 bytes
+ *   index: offset and rows of each chunk, number of chunks, offset of the index, magic
+ * </pre>
+ * The {@link RowTransform} is applied while compiling: the filtered lines
+ * are dropped and the computed columns are stored after the ones of the file.
+ * <p/>
+ * Usage: {@code ColumnarFile <csv> <output> <types>}, the types as a comma
+ * separated list of int, bigint, float, double or text, one for each column
+ * including the computed ones. With {@code -Dheader=true} the column names
+ * are kept, so the file can be loaded as {@code keyspace.table}.
+ */
+public class ColumnarFile {
+    private final static Logger log = LoggerFactory.getLogger(ColumnarFile.class);
+    static final int MAGIC = 0x4C4F4346; // "FCOL"
+    static final int VERSION = 1;
+    static final int FOOTER_SIZE = 4 + 8 + 4;
+
+    public enum Type {
+        INT(4), BIGINT(8), FLOAT(4), DOUBLE(8), TEXT(-1);
+
+        /**
+         * The bytes of a value, -1 if variable.
+         */
+        final int width;
+
+        Type(int width) {
+            this.width = width;
+        }
+
+        public static Type parse(String name) {
+            switch (name.trim().toLowerCase()) {
+                case "int":
+                    return INT;
+                case "bigint":
+                    return BIGINT;
+                case "float":
+                    return FLOAT;
+                case "double":
+                    return DOUBLE;
+                case "text":
+                case "varchar":
+                case "ascii":
+                    return TEXT;
+                default:
+                    throw new IllegalArgumentException("Type " + name + " not supported");
+            }
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        if (args.length != 3)
+            throw new IllegalArgumentException("You must provide the csv file, the output file and the column types");
+        File csv = new File(checkNotNull(args[0], "First argument missing"));
+        checkArgument(csv.exists(), "File not found");
+        String fs = System.getProperty("FS", ",");
+        checkArgument(fs.length() == 1, "Supported only separators of 1 single char");
+        String[] names = args[2].split(",");
+        Type[] types = new Type[names.length];
+        for (int i = 0; i < names.length; i++)
+            types[i] = Type.parse(names[i]);
+        TrajectoryReader reader = new MappedReader(csv, fs.charAt(0), Boolean.getBoolean("header"));
+        compile(reader, RowTransform.fromProperties(reader.header), types, new File(args[1]),
+                Integer.getInteger("columnar.chunkRows", 65536));
+    }
+
+    /**
+     * @param transform the filter and the computed columns, null if none
+     * @param types     the types of the first fields, the ones stored, followed by the ones of the
+     *                  computed columns
+     * @return the number of rows written
+     */
+    public static long compile(TrajectoryReader reader, RowTransform transform, Type[] types, File output, int chunkRows)
+            throws IOException {
+        int computed = transform == null ? 0 : transform.size();
+        int fields = types.length - computed;
+        checkArgument(fields > 0 && fields <= reader.numberOfFields,
+                "%s types for %s fields and %s computed columns", types.length, reader.numberOfFields, computed);
+        checkArgument(chunkRows > 0, "Invalid chunk size %s", chunkRows);
+        String[] names = null;
+        if (reader.header != null) {
+            // the stored fields followed by the computed columns
+            String[] all = transform == null ? reader.header : transform.extend(reader.header);
+            names = new String[types.length];
+            System.arraycopy(all, 0, names, 0, fields);
+            System.arraycopy(all, reader.numberOfFields, names, fields, computed);
+        }
+        long time = System.currentTimeMillis();
+        long rows = 0;
+        List<long[]> index = new ArrayList<>();
+        try (FileChannel out = new FileOutputStream(output).getChannel()) {
+            writeHeader(out, types, names);
+            Chunk chunk = new Chunk(types, chunkRows);
+            String[] line = new String[reader.numberOfFields];
+            while (reader.hasNext()) {
+                reader.next(line);
+                if (transform != null && !transform.accept(line))
+                    continue;
+                for (int i = 0; i < fields; i++)
+                    chunk.add(i, line[i]);
+                for (int i = fields; i < types.length; i++)
+                    chunk.add(i, transform.compute(i - fields, line));
+                rows++;
+                if (++chunk.rows == chunkRows)
+                    index.add(chunk.write(out));
+            }
+            if (chunk.rows > 0)
+                index.add(chunk.write(out));
+            writeIndex(out, index);
+        }
+        log.info("Compiled {} rows in {} chunks into {} ({} bytes) in {} ms", rows, index.size(), output,
+                output.length(), System.currentTimeMillis() - time);
+        return rows;
+    }
+
+    private static void writeHeader(FileChannel out, Type[] types, String[] names) throws IOException {
+        byte[][] encoded = new byte[types.length][];
+        int size = 12;
+        for (int i = 0; i < types.length; i++) {
+            encoded[i] = names == null ? new byte[0] : names[i].getBytes(StandardCharsets.UTF_8);
+            size += 1 + 2 + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(types.length);
+        for (int i = 0; i < types.length; i++)
+            buffer.put((byte) types[i].ordinal()).putShort((short) encoded[i].length).put(encoded[i]);
+        buffer.flip();
+        write(out, buffer);
+    }
+
+    private static void writeIndex(FileChannel out, List<long[]> index) throws IOException {
+        long indexOffset = out.position();
+        ByteBuffer buffer = ByteBuffer.allocate(index.size() * 12 + FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (long[] chunk : index)
+            buffer.putLong(chunk[0]).putInt((int) chunk[1]);
+        buffer.putInt(index.size()).putLong(indexOffset).putInt(MAGIC);
+        buffer.flip();
+        write(out, buffer);
+    }
+
+    static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    /**
+     * The columns of the rows being compiled.
+     */
+    private static class Chunk {
+        private final Type[] types;
+        private final ByteBuffer[] values;
+        private final ByteArrayOutputStream[] text;
+        int rows = 0;
+
+        Chunk(Type[] types, int chunkRows) {
+            this.types = types;
+            this.values = new ByteBuffer[types.length];
+            this.text = new ByteArrayOutputStream[types.length];
+            for (int i = 0; i < types.length; i++) {
+                // the end offsets of the text values are ints too
+                int width = types[i] == Type.TEXT ? 4 : types[i].width;
+                values[i] = ByteBuffer.allocate(width * chunkRows).order(ByteOrder.LITTLE_ENDIAN);
+                if (types[i] == Type.TEXT)
+                    text[i] = new ByteArrayOutputStream();
+            }
+        }
+
+        void add(int column, String field) {
+            ByteBuffer buffer = values[column];
+            switch (types[column]) {
+                case INT:
+                    buffer.putInt(Integer.parseInt(field));
+                    break;
+                case BIGINT:
+                    buffer.putLong(Long.parseLong(field));
+                    break;
+                case FLOAT:
+                    buffer.putFloat(Float.parseFloat(field));
+                    break;
+                case DOUBLE:
+                    buffer.putDouble(Double.parseDouble(field));
+                    break;
+                case TEXT:
+                    byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                    text[column].write(bytes, 0, bytes.length);
+                    buffer.putInt(text[column].size());
+                    break;
+            }
+        }
+
+        void add(int column, double value) {
+            ByteBuffer buffer = values[column];
+            switch (types[column]) {
+                case INT:
+                    buffer.putInt((int) value);
+                    break;
+                case BIGINT:
+                    buffer.putLong((long) value);
+                    break;
+                case FLOAT:
+                    buffer.putFloat((float) value);
+                    break;
+                case DOUBLE:
+                    buffer.putDouble(value);
+                    break;
+                case TEXT:
+                    add(column, Double.toString(value));
+                    break;
+            }
+        }
+
+        /**
+         * Writes the chunk and empties it.
+         *
+         * @return the offset and the rows of the chunk, for the index
+         */
+        long[] write(FileChannel out) throws IOException {
+            long[] entry = {out.position(), rows};
+            for (int i = 0; i < types.length; i++) {
+                int size = values[i].position() + (text[i] == null ? 0 : text[i].size());
+                ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(size);
+                length.flip();
+                ColumnarFile.write(out, length);
+                values[i].flip();
+                ColumnarFile.write(out, values[i]);
+                values[i].clear();
+                if (text[i] != null) {
+                    ColumnarFile.write(out, ByteBuffer.wrap(text[i].toByteArray()));
+                    text[i].reset();
+                }
+            }
+            rows = 0;
+            return entry;
+        }
+    }
+}
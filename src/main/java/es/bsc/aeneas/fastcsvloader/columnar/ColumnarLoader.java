@@ -0,0 +1,228 @@
+package es.bsc.aeneas.fastcsvloader.columnar;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import es.bsc.aeneas.fastcsvloader.CqlFrameLoader;
+import es.bsc.aeneas.fastcsvloader.InsertPlan;
+import es.bsc.aeneas.fastcsvloader.MemoryBudget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Loads a file compiled by {@link ColumnarFile}. There is no reader thread:
+ * {@code columnar.threads} threads (default 4) take the chunks one at a time
+ * and set their values on the statements as primitives, with no parsing.
+ * The batches of {@code columnar.batchRows} rows (default 64) are sent
+ * asynchronously, at most {@code cassandra.maxInFlight} at a time.
+ * <p/>
+ * Usage: {@code ColumnarLoader <file> <query|keyspace.table>}. With
+ * {@code columnar.chunks=first-last} only those chunks are loaded, to split
+ * the file between several processes.
+ */
+public class ColumnarLoader {
+    private final static Logger log = LoggerFactory.getLogger(ColumnarLoader.class);
+
+    private final ColumnarReader reader;
+    private final CqlFrameLoader loader;
+    private final Setter[] setters;
+    private final int batchRows = Integer.getInteger("columnar.batchRows", 64);
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final MemoryBudget.Rows budget;
+
+    public ColumnarLoader(ColumnarReader reader, CqlFrameLoader loader, long rowBytes) {
+        this.reader = reader;
+        this.loader = loader;
+        Class<?>[] variables = loader.variableTypes();
+        checkArgument(variables.length <= reader.types.length, "The query binds %s variables, the file has %s columns",
+                variables.length, reader.types.length);
+        setters = new Setter[variables.length];
+        for (int i = 0; i < variables.length; i++)
+            setters[i] = setter(reader.types[i], variables[i], i);
+        MemoryBudget memoryBudget = MemoryBudget.get();
+        budget = memoryBudget == null ? null : memoryBudget.rows(rowBytes);
+    }
+
+    public static void main(String args[]) throws Exception {
+        if (args.length != 2)
+            throw new IllegalArgumentException("You must provide the columnar file and the query (or keyspace.table)");
+        File file = new File(checkNotNull(args[0], "First argument missing"));
+        checkArgument(file.exists(), "File not found");
+        String query = checkNotNull(args[1], "Second argument missing");
+        // the transform was applied when compiling, the columns are bound as they are
+        try (ColumnarReader reader = new ColumnarReader(file);
+             CqlFrameLoader loader = query.trim().toLowerCase().startsWith("insert")
+                     ? new CqlFrameLoader(query, null)
+                     : new CqlFrameLoader(InsertPlan.splitName(query)[0], InsertPlan.splitName(query)[1], reader.names,
+                     null)) {
+            int first = 0, last = reader.chunks() - 1;
+            String chunks = System.getProperty("columnar.chunks");
+            if (chunks != null) {
+                String[] range = chunks.split("-");
+                first = Integer.parseInt(range[0].trim());
+                last = Math.min(last, Integer.parseInt(range[range.length - 1].trim()));
+            }
+            // the heap of a row is a few times its size on disk
+            long rowBytes = 4 * file.length() / Math.max(1, reader.rows());
+            new ColumnarLoader(reader, loader, rowBytes).load(first, last, Integer.getInteger("columnar.threads", 4));
+        }
+    }
+
+    /**
+     * @return the number of rows inserted
+     */
+    public long load(final int first, final int last, int nThreads) throws Exception {
+        long time = System.currentTimeMillis();
+        final AtomicInteger next = new AtomicInteger(first);
+        final List<Exception> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = next.getAndIncrement(); i <= last; i = next.getAndIncrement())
+                            load(reader.chunk(i));
+                    } catch (Exception e) {
+                        log.error("Loading of a chunk failed", e);
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                        // the other threads stop as well
+                        next.set(last + 1);
+                    }
+                }
+            }, "ColumnarLoader-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        loader.awaitPending();
+        if (!errors.isEmpty())
+            throw errors.get(0);
+        long elapsed = System.currentTimeMillis() - time;
+        if (failed.get() > 0)
+            log.error("{} rows failed", failed.get());
+        log.info("Loaded chunks {}-{} in {} ms: {} rows inserted, {} rows/s", first, last, elapsed, inserted.get(),
+                elapsed == 0 ? inserted.get() : inserted.get() * 1000 / elapsed);
+        return inserted.get();
+    }
+
+    private void load(ColumnarReader.Chunk chunk) throws Exception {
+        BatchStatement batch = new BatchStatement();
+        for (int row = 0; row < chunk.rows; row++) {
+            if (budget != null && !budget.tryAcquire()) {
+                // never wait holding the rows of a batch
+                send(batch);
+                batch = new BatchStatement();
+                budget.acquire();
+            }
+            BoundStatement statement = loader.newStatement();
+            for (int i = 0; i < setters.length; i++)
+                setters[i].set(statement, chunk, row);
+            batch.add(statement);
+            if (batch.size() == batchRows) {
+                send(batch);
+                batch = new BatchStatement();
+            }
+        }
+        send(batch);
+    }
+
+    private void send(BatchStatement batch) throws InterruptedException {
+        final int size = batch.size();
+        if (size == 0)
+            return;
+        loader.insertBatchAsync(batch, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                inserted.addAndGet(size);
+                if (budget != null)
+                    budget.release(size);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failed.addAndGet(size);
+                if (budget != null)
+                    budget.release(size);
+                log.error("Failed inserting a batch of {} rows", size, t);
+            }
+        });
+    }
+
+    /**
+     * Sets a variable from a column, converting the primitive if the table
+     * has a wider type that represents every value exactly: an int doesn't fit
+     * a float above 2^24, nor a bigint a double above 2^53.
+     */
+    interface Setter {
+        void set(BoundStatement statement, ColumnarReader.Chunk chunk, int row);
+    }
+
+    static Setter setter(final ColumnarFile.Type type, Class<?> variable, final int i) {
+        if (variable == String.class) {
+            return new Setter() {
+                @Override
+                public void set(BoundStatement statement, ColumnarReader.Chunk chunk, int row) {
+                    statement.setString(i, type == ColumnarFile.Type.TEXT ? chunk.getString(i, row)
+                            : String.valueOf(chunk.get(i, row)));
+                }
+            };
+        }
+        if (variable == Integer.class && type == ColumnarFile.Type.INT) {
+            return new Setter() {
+                @Override
+                public void set(BoundStatement statement, ColumnarReader.Chunk chunk, int row) {
+                    statement.setInt(i, chunk.getInt(i, row));
+                }
+            };
+        }
+        if (variable == Long.class && (type == ColumnarFile.Type.BIGINT || type == ColumnarFile.Type.INT)) {
+            return new Setter() {
+                @Override
+                public void set(BoundStatement statement, ColumnarReader.Chunk chunk, int row) {
+                    statement.setLong(i, type == ColumnarFile.Type.INT ? chunk.getInt(i, row) : chunk.getLong(i, row));
+                }
+            };
+        }
+        if (variable == Float.class && type == ColumnarFile.Type.FLOAT) {
+            return new Setter() {
+                @Override
+                public void set(BoundStatement statement, ColumnarReader.Chunk chunk, int row) {
+                    statement.setFloat(i, chunk.getFloat(i, row));
+                }
+            };
+        }
+        if (variable == Double.class && type != ColumnarFile.Type.TEXT && type != ColumnarFile.Type.BIGINT) {
+            return new Setter() {
+                @Override
+                public void set(BoundStatement statement, ColumnarReader.Chunk chunk, int row) {
+                    switch (type) {
+                        case INT:
+                            statement.setDouble(i, chunk.getInt(i, row));
+                            break;
+                        case FLOAT:
+                            statement.setDouble(i, chunk.getFloat(i, row));
+                            break;
+                        default:
+                            statement.setDouble(i, chunk.getDouble(i, row));
+                    }
+                }
+            };
+        }
+        throw new IllegalArgumentException("Column " + (i + 1) + " of type " + type + " can't be bound to a " + variable.getSimpleName());
+    }
+}
@@ -0,0 +1,181 @@
+package es.bsc.aeneas.fastcsvloader.columnar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * Reads a file written by {@link ColumnarFile}. Each chunk is mapped on its
+ * own, so several threads or processes can load different chunks of the
+ * same file, and its values are read in place as primitives.
+ */
+public class ColumnarReader implements Closeable {
+    private final File file;
+    private final FileChannel channel;
+    public final ColumnarFile.Type[] types;
+    /**
+     * The column names, null if the CSV file had no header.
+     */
+    public final String[] names;
+    private final long[] offsets;
+    private final int[] rows;
+
+    public ColumnarReader(File file) throws IOException {
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        // a rejected file leaves no reader to close
+        boolean opened = false;
+        try {
+            long size = channel.size();
+            checkArgument(size >= 12 + ColumnarFile.FOOTER_SIZE, "%s is not a columnar file", file);
+
+            ByteBuffer footer = read(size - ColumnarFile.FOOTER_SIZE, ColumnarFile.FOOTER_SIZE);
+            int chunks = footer.getInt();
+            long indexOffset = footer.getLong();
+            checkArgument(footer.getInt() == ColumnarFile.MAGIC, "%s is not a columnar file or it is incomplete", file);
+            ByteBuffer index = read(indexOffset, chunks * 12);
+            offsets = new long[chunks + 1];
+            rows = new int[chunks];
+            for (int i = 0; i < chunks; i++) {
+                offsets[i] = index.getLong();
+                rows[i] = index.getInt();
+            }
+            offsets[chunks] = indexOffset;
+
+            // the first chunk follows the header
+            ByteBuffer header = read(0, (int) offsets[0]);
+            checkArgument(header.getInt() == ColumnarFile.MAGIC, "%s is not a columnar file", file);
+            int version = header.getInt();
+            checkArgument(version == ColumnarFile.VERSION, "Version %s of %s not supported", version, file);
+            types = new ColumnarFile.Type[header.getInt()];
+            String[] names = new String[types.length];
+            boolean named = false;
+            for (int i = 0; i < types.length; i++) {
+                types[i] = ColumnarFile.Type.values()[header.get()];
+                byte[] name = new byte[header.getShort()];
+                header.get(name);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+                named |= name.length > 0;
+            }
+            this.names = named ? names : null;
+            opened = true;
+        } finally {
+            if (!opened)
+                channel.close();
+        }
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of " + file);
+        buffer.flip();
+        return buffer;
+    }
+
+    public int chunks() {
+        return rows.length;
+    }
+
+    /**
+     * @return the number of rows of the whole file
+     */
+    public long rows() {
+        long total = 0;
+        for (int r : rows)
+            total += r;
+        return total;
+    }
+
+    /**
+     * Maps a chunk. The chunks are independent, they can be read by
+     * different threads.
+     */
+    public Chunk chunk(int i) throws IOException {
+        checkElementIndex(i, rows.length, "chunk");
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], offsets[i + 1] - offsets[i]);
+        return new Chunk(buffer, rows[i]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The values of a chunk, by column and row.
+     */
+    public class Chunk {
+        public final int rows;
+        private final ByteBuffer[] columns;
+
+        Chunk(ByteBuffer buffer, int rows) {
+            this.rows = rows;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            columns = new ByteBuffer[types.length];
+            for (int i = 0; i < types.length; i++) {
+                int size = buffer.getInt();
+                ByteBuffer column = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                column.limit(size);
+                columns[i] = column;
+                buffer.position(buffer.position() + size);
+            }
+        }
+
+        public int getInt(int column, int row) {
+            return columns[column].getInt(row << 2);
+        }
+
+        public long getLong(int column, int row) {
+            return columns[column].getLong(row << 3);
+        }
+
+        public float getFloat(int column, int row) {
+            return columns[column].getFloat(row << 2);
+        }
+
+        public double getDouble(int column, int row) {
+            return columns[column].getDouble(row << 3);
+        }
+
+        public String getString(int column, int row) {
+            ByteBuffer buffer = columns[column];
+            int start = row == 0 ? 0 : buffer.getInt((row - 1) << 2);
+            int end = buffer.getInt(row << 2);
+            byte[] bytes = new byte[end - start];
+            ByteBuffer text = buffer.duplicate();
+            // the bytes follow the end offsets
+            text.position((rows << 2) + start);
+            text.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the value as an object of the type of the column
+         */
+        public Object get(int column, int row) {
+            switch (types[column]) {
+                case INT:
+                    return getInt(column, row);
+                case BIGINT:
+                    return getLong(column, row);
+                case FLOAT:
+                    return getFloat(column, row);
+                case DOUBLE:
+                    return getDouble(column, row);
+                default:
+                    return getString(column, row);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package es.bsc.aeneas.fastcsvloader.distributed;
+
+import java.io.File;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A line aligned portion of a file, the unit of work of a {@link LoadWorker}.
+ */
+public class ByteRange {
+    public final int id;
+    public final File file;
+    public final long start;
+    public final long end;
+
+    public ByteRange(int id, File file, long start, long end) {
+        this.id = id;
+        this.file = file;
+        this.start = start;
+        this.end = end;
+    }
+
+    public long size() {
+        return end - start;
+    }
+
+    /**
+     * The path is the last field, so it can contain tabs.
+     */
+    String toLine() {
+        return id + "\t" + start + "\t" + end + "\t" + file.getAbsolutePath();
+    }
+
+    static ByteRange parse(String line) {
+        String[] fields = line.split("\t", 4);
+        checkArgument(fields.length == 4, "Invalid range %s", line);
+        return new ByteRange(Integer.parseInt(fields[0]), new File(fields[3]),
+                Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+    }
+
+    @Override
+    public String toString() {
+        return "range " + id + " [" + start + "," + end + ") of " + file.getName();
+    }
+}
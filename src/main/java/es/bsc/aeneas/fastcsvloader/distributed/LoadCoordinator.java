@@ -0,0 +1,207 @@
+package es.bsc.aeneas.fastcsvloader.distributed;
+
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Splits the input files in line aligned byte ranges, so that several
+ * {@link LoadWorker} processes can load them in parallel.
+ * <p/>
+ * The coordination goes through a directory shared by all the processes:
+ * <ul>
+ * <li>{@code ranges}: the list of ranges, written once by the coordinator</li>
+ * <li>{@code range-N.lock}: locked by the worker loading the range. The lock
+ * is released by the OS if the worker dies, so another one takes it over</li>
+ * <li>{@code range-N.done}: the checkpoint of a range completed, with the
+ * rows inserted and the time spent</li>
+ * <li>{@code range-N.failed}: a range whose load failed, with the counts and
+ * the error. It is not loaded again unless the file is deleted</li>
+ * </ul>
+ * Usage: {@code LoadCoordinator <directory> <file>...}, with the properties
+ * {@code range.size} (MB, default 256) and {@code header} (true if the files
+ * start with the column names).
+ */
+public class LoadCoordinator {
+    private final static Logger log = LoggerFactory.getLogger(LoadCoordinator.class);
+    static final String RANGES = "ranges";
+
+    public static void main(String args[]) throws Exception {
+        if (args.length < 2)
+            throw new IllegalArgumentException("You must provide the coordination directory and the files to load");
+        File dir = new File(args[0]);
+        checkArgument(dir.isDirectory() || dir.mkdirs(), "Cannot create the directory %s", dir);
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            File f = new File(args[i]);
+            checkArgument(f.exists(), "File %s not found", f);
+            files.add(f);
+        }
+        long rangeSize = Long.getLong("range.size", 256) << 20;
+        List<ByteRange> ranges = split(files, rangeSize, Boolean.getBoolean("header"));
+        plan(dir, ranges);
+        if (monitor(dir, Long.getLong("monitor.period", 10000)) > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @param rangeSize the approximate size of each range, they are extended
+     *                  up to the end of the line
+     * @param header    if true the first line of each file is skipped, and
+     *                  it must be the same in all the files
+     */
+    public static List<ByteRange> split(List<File> files, long rangeSize, boolean header) throws IOException {
+        checkArgument(rangeSize > 0, "Invalid range size %s", rangeSize);
+        List<ByteRange> ranges = new ArrayList<>();
+        int id = 0;
+        String first = null;
+        for (File file : files) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                long size = raf.length();
+                long start = 0;
+                if (header) {
+                    // the line following the first newline
+                    start = nextLine(raf, 1);
+                    raf.seek(0);
+                    String line = raf.readLine();
+                    checkArgument(first == null || first.equals(line),
+                            "The header of %s is not the one of %s", file, files.get(0));
+                    first = line;
+                }
+                while (start < size) {
+                    long end = start + rangeSize >= size ? size : nextLine(raf, start + rangeSize);
+                    ranges.add(new ByteRange(id++, file, start, end));
+                    start = end;
+                }
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return the offset of the first line starting at or after position
+     */
+    static long nextLine(RandomAccessFile raf, long position) throws IOException {
+        if (position == 0)
+            return 0;
+        // the previous byte tells if position is already the beginning of a line
+        raf.seek(position - 1);
+        byte[] buffer = new byte[4096];
+        long offset = position - 1;
+        int read;
+        while ((read = raf.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++)
+                if (buffer[i] == '\n')
+                    return offset + i + 1;
+            offset += read;
+        }
+        return raf.length();
+    }
+
+    public static void plan(File dir, List<ByteRange> ranges) throws IOException {
+        StringBuilder plan = new StringBuilder();
+        for (ByteRange range : ranges)
+            plan.append(range.toLine()).append('\n');
+        File tmp = new File(dir, RANGES + ".tmp");
+        Files.write(plan, tmp, StandardCharsets.UTF_8);
+        // the workers never see a partial plan
+        checkArgument(tmp.renameTo(new File(dir, RANGES)), "Cannot write the plan in %s", dir);
+        log.info("Planned {} ranges in {}", ranges.size(), dir);
+    }
+
+    public static List<ByteRange> readPlan(File dir) throws IOException {
+        File file = new File(dir, RANGES);
+        checkArgument(file.exists(), "No plan found in %s", dir);
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String line : Files.readLines(file, StandardCharsets.UTF_8))
+            if (!line.isEmpty())
+                ranges.add(ByteRange.parse(line));
+        return ranges;
+    }
+
+    static File lockFile(File dir, ByteRange range) {
+        return new File(dir, "range-" + range.id + ".lock");
+    }
+
+    static File doneFile(File dir, ByteRange range) {
+        return new File(dir, "range-" + range.id + ".done");
+    }
+
+    static File failedFile(File dir, ByteRange range) {
+        return new File(dir, "range-" + range.id + ".failed");
+    }
+
+    /**
+     * @return the checkpoint of the range, null if it is not completed
+     */
+    static Properties checkpoint(File dir, ByteRange range) throws IOException {
+        return load(doneFile(dir, range));
+    }
+
+    /**
+     * @return the failure of the range, null if it has not failed
+     */
+    static Properties failure(File dir, ByteRange range) throws IOException {
+        return load(failedFile(dir, range));
+    }
+
+    private static Properties load(File file) throws IOException {
+        if (!file.exists())
+            return null;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Logs the progress until all the ranges are completed or failed.
+     *
+     * @return the number of failed ranges
+     */
+    public static int monitor(File dir, long period) throws IOException, InterruptedException {
+        List<ByteRange> ranges = readPlan(dir);
+        long total = 0;
+        for (ByteRange range : ranges)
+            total += range.size();
+        long start = System.currentTimeMillis();
+        while (true) {
+            int done = 0, failed = 0;
+            long bytes = 0, rows = 0;
+            for (ByteRange range : ranges) {
+                Properties checkpoint = checkpoint(dir, range);
+                if (checkpoint != null) {
+                    done++;
+                    bytes += range.size();
+                    rows += Long.parseLong(checkpoint.getProperty("rows", "0"));
+                } else if (failure(dir, range) != null) {
+                    failed++;
+                    bytes += range.size();
+                }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            long eta = bytes == 0 ? -1 : elapsed * (total - bytes) / bytes / 1000;
+            log.info("{}/{} ranges completed, {} failed, {}% of the bytes, {} rows, ETA {} s",
+                    done, ranges.size(), failed, total == 0 ? 100 : bytes * 100 / total, rows, eta);
+            if (done + failed == ranges.size()) {
+                if (failed > 0)
+                    log.error("{} ranges failed, see the range-N.failed files in {}", failed, dir);
+                return failed;
+            }
+            Thread.sleep(period);
+        }
+    }
+}
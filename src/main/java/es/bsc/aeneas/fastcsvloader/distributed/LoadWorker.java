@@ -0,0 +1,177 @@
+package es.bsc.aeneas.fastcsvloader.distributed;
+
+import es.bsc.aeneas.fastcsvloader.CqlFrameLoader;
+import es.bsc.aeneas.fastcsvloader.DisruptorImplementation;
+import es.bsc.aeneas.fastcsvloader.InsertPlan;
+import es.bsc.aeneas.fastcsvloader.MappedReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Loads the ranges planned by a {@link LoadCoordinator}, each one with a
+ * {@link DisruptorImplementation} sharing the same connection to the cluster.
+ * Several workers, on the same or on different nodes, can share the same
+ * coordination directory.
+ * <p/>
+ * Usage: {@code LoadWorker <directory> <query|keyspace.table>}
+ */
+public class LoadWorker {
+    private final static Logger log = LoggerFactory.getLogger(LoadWorker.class);
+
+    private final File dir;
+    private final String query;
+    private final char FS;
+    private final String workerId = ManagementFactory.getRuntimeMXBean().getName();
+    private CqlFrameLoader loader = null;
+    // the header the loader was built for, with keyspace.table
+    private String[] header = null;
+
+    public LoadWorker(File dir, String query, char FS) {
+        this.dir = dir;
+        this.query = query;
+        this.FS = FS;
+    }
+
+    public static void main(String args[]) throws Exception {
+        if (args.length != 2)
+            throw new IllegalArgumentException("You must provide the coordination directory and the query (or keyspace.table)");
+        File dir = new File(checkNotNull(args[0], "First argument missing"));
+        String query = checkNotNull(args[1], "Second argument missing");
+        String fs = System.getProperty("FS", ",");
+        checkArgument(fs.length() == 1, "Supported only separators of 1 single char");
+        new LoadWorker(dir, query, fs.charAt(0)).run();
+    }
+
+    /**
+     * Loads ranges until all of them are completed or failed. The ranges
+     * locked by other workers are checked again later, in case their worker
+     * died.
+     */
+    public void run() throws Exception {
+        List<ByteRange> ranges = LoadCoordinator.readPlan(dir);
+        long poll = Long.getLong("worker.poll", 5000);
+        try {
+            while (true) {
+                boolean pending = false;
+                for (ByteRange range : ranges) {
+                    if (finished(range))
+                        continue;
+                    if (!tryLoad(range))
+                        pending = true;
+                }
+                if (!pending)
+                    break;
+                Thread.sleep(poll);
+            }
+        } finally {
+            if (loader != null)
+                loader.close();
+        }
+        log.info("Worker {}: all the ranges are completed or failed", workerId);
+    }
+
+    private boolean finished(ByteRange range) {
+        return LoadCoordinator.doneFile(dir, range).exists() || LoadCoordinator.failedFile(dir, range).exists();
+    }
+
+    /**
+     * @return false if the range is being loaded by another worker
+     */
+    private boolean tryLoad(ByteRange range) throws Exception {
+        try (RandomAccessFile lockFile = new RandomAccessFile(LoadCoordinator.lockFile(dir, range), "rw")) {
+            FileLock lock = lockFile.getChannel().tryLock();
+            if (lock == null)
+                return false;
+            try {
+                // completed by another worker meanwhile
+                if (finished(range))
+                    return true;
+                lockFile.setLength(0);
+                lockFile.writeBytes(workerId + "\n");
+                log.info("Worker {} loading {}", workerId, range);
+                long time = System.currentTimeMillis();
+                DisruptorImplementation implementation = null;
+                try {
+                    implementation = implementation(range);
+                    long rows = implementation.execute();
+                    long expected = implementation.getPublished() - implementation.getDuplicates()
+                            - implementation.getFiltered();
+                    checkState(rows == expected, "Only %s of the %s lines of %s were inserted", rows, expected, range);
+                    checkpoint(range, rows, System.currentTimeMillis() - time);
+                } catch (Exception e) {
+                    // the same error would stop every worker: the range is not loaded again
+                    log.error("Worker {} failed loading {}", workerId, range, e);
+                    fail(range, implementation, e);
+                }
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private DisruptorImplementation implementation(ByteRange range) throws Exception {
+        boolean table = !query.trim().toLowerCase().startsWith("insert");
+        // with -Dheader=true the coordinator already starts the ranges after the header
+        MappedReader reader = new MappedReader(range.file, FS, table, range.start, range.end);
+        // the query binds the columns in the order of the header it was derived from
+        checkArgument(header == null || Arrays.equals(header, reader.header),
+                "The header of %s is %s, the query was derived from %s", range.file,
+                Arrays.toString(reader.header), Arrays.toString(header));
+        if (loader == null) {
+            if (table) {
+                String[] name = InsertPlan.splitName(query);
+                loader = new CqlFrameLoader(name[0], name[1], reader.header);
+                header = reader.header;
+            } else {
+                loader = new CqlFrameLoader(reader, query);
+            }
+        }
+        return new DisruptorImplementation(reader, loader);
+    }
+
+    private void checkpoint(ByteRange range, long rows, long ms) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("rows", Long.toString(rows));
+        properties.setProperty("ms", Long.toString(ms));
+        write(range, properties, LoadCoordinator.doneFile(dir, range));
+    }
+
+    /**
+     * @param implementation the load of the range, null if it couldn't be created
+     */
+    private void fail(ByteRange range, DisruptorImplementation implementation, Exception e) throws IOException {
+        Properties properties = new Properties();
+        if (implementation != null) {
+            properties.setProperty("published", Long.toString(implementation.getPublished()));
+            properties.setProperty("duplicates", Long.toString(implementation.getDuplicates()));
+            properties.setProperty("filtered", Long.toString(implementation.getFiltered()));
+        }
+        properties.setProperty("error", String.valueOf(e));
+        write(range, properties, LoadCoordinator.failedFile(dir, range));
+    }
+
+    private void write(ByteRange range, Properties properties, File file) throws IOException {
+        properties.setProperty("worker", workerId);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, range.toString());
+        }
+        checkArgument(tmp.renameTo(file), "Cannot write %s", file);
+    }
+}
@@ -0,0 +1,121 @@
+package es.bsc.aeneas.fastcsvloader.sstablewriter;
+
+import org.apache.cassandra.io.sstable.SSTableLoader;
+import org.apache.cassandra.utils.NativeSSTableLoaderClient;
+import org.apache.cassandra.utils.OutputHandler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streams to the cluster the SSTables written by {@link SSTableWriter} while
+ * the conversion goes on, as sstableloader would do, and deletes them once
+ * streamed.
+ * <p/>
+ * The generations are streamed one at a time. At most
+ * {@code stream.maxPending} closed generations wait on disk: when streaming
+ * is slower than converting, {@link #submit} blocks, bounding the disk used.
+ */
+public class SSTableStreamer implements Closeable {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "SSTableStreamer");
+        }
+    });
+    private final Semaphore pending = new Semaphore(Integer.getInteger("stream.maxPending", 2));
+    private final List<Future<?>> streams = new ArrayList<>();
+    private final Set<InetAddress> hosts = new HashSet<>();
+    private final int port = Integer.getInteger("cassandra.port", 9042);
+
+    public SSTableStreamer() throws IOException {
+        for (String host : System.getProperty("cassandra.servers", "localhost").split(","))
+            hosts.add(InetAddress.getByName(host));
+    }
+
+    /**
+     * @param directory a closed generation, as {@code .../keyspace/table}
+     */
+    public void submit(final File directory) throws InterruptedException {
+        pending.acquire();
+        streams.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stream(directory);
+                } finally {
+                    pending.release();
+                }
+            }
+        }));
+    }
+
+    private void stream(File directory) {
+        System.out.println("Streaming " + directory);
+        long start = System.currentTimeMillis();
+        NativeSSTableLoaderClient client = new NativeSSTableLoaderClient(hosts, port,
+                System.getProperty("cassandra.user"), System.getProperty("cassandra.password"), null);
+        SSTableLoader loader = new SSTableLoader(directory, client, new OutputHandler.SystemOutput(false, false));
+        try {
+            loader.stream().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Streaming of " + directory + " interrupted", e);
+        } catch (ExecutionException e) {
+            // the files are kept, they can be loaded with sstableloader
+            throw new RuntimeException("Streaming of " + directory + " failed", e.getCause());
+        } finally {
+            client.stop();
+        }
+        if (!loader.getFailedHosts().isEmpty())
+            throw new RuntimeException("Streaming of " + directory + " failed for hosts " + loader.getFailedHosts());
+        System.out.println("Streamed " + directory + " in " + (System.currentTimeMillis() - start) + " ms");
+        delete(directory.getParentFile().getParentFile());
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        if (!file.delete())
+            System.err.println("Cannot delete " + file);
+    }
+
+    /**
+     * Waits for all the generations to be streamed.
+     *
+     * @throws IOException if any streaming failed
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        int failed = 0;
+        for (Future<?> stream : streams) {
+            try {
+                stream.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the streaming", e);
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println(e.getCause().getMessage());
+            }
+        }
+        if (failed > 0)
+            throw new IOException(failed + " generations not streamed, their SSTables are kept on disk");
+    }
+}
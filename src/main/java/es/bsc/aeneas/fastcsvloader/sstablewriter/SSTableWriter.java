@@ -1,8 +1,13 @@
 package es.bsc.aeneas.fastcsvloader.sstablewriter;
 
+import com.google.common.io.Files;
 import es.bsc.aeneas.fastcsvloader.CqlTypeConverter;
+import es.bsc.aeneas.fastcsvloader.FollowReader;
+import es.bsc.aeneas.fastcsvloader.InsertPlan;
 import es.bsc.aeneas.fastcsvloader.MappedReader;
+import es.bsc.aeneas.fastcsvloader.MemoryBudget;
 import es.bsc.aeneas.fastcsvloader.NIOReader;
+import es.bsc.aeneas.fastcsvloader.RowTransform;
 import es.bsc.aeneas.fastcsvloader.TrajectoryReader;
 import org.apache.cassandra.config.Config;
 import org.apache.cassandra.cql3.CQLStatement;
@@ -15,9 +20,11 @@ import org.apache.cassandra.io.sstable.CQLSSTableWriter;
 import org.apache.cassandra.service.ClientState;
 import org.apache.cassandra.utils.Pair;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -37,7 +44,14 @@ public class SSTableWriter {
         String file = checkNotNull(args[0], "Fist argument (file name) missing");
         String query = checkNotNull(args[1], "Second argument (query) missing");
         String schema = checkNotNull(args[2], "Third argument (schema) missing");
-        write(file, query, schema);
+        if (new File(schema).isFile())
+            schema = Files.toString(new File(schema), StandardCharsets.UTF_8);
+        if (query.trim().toLowerCase().startsWith("insert")) {
+            write(file, query, schema);
+        } else {
+            // keyspace.table: the query is derived from the header of the file
+            writeTable(file, schema);
+        }
 
     }
 
@@ -46,6 +60,26 @@ public class SSTableWriter {
         checkArgument(matcher.matches(), "Impossible to detect keyspace and table name from the query");
         String keyspace = matcher.group("keyspace");
         String table = matcher.group("table");
+        TrajectoryReader trajectoryReader = openReader(file, false);
+        write(trajectoryReader, RowTransform.fromProperties(null), keyspace, table, query, schema);
+    }
+
+    /**
+     * Writes a file whose first line contains the column names: the query is
+     * derived from the header, see {@link InsertPlan}.
+     *
+     * @param schema the CREATE TABLE statement
+     */
+    public static void writeTable(String file, String schema) throws InvalidRequestException, IOException {
+        TrajectoryReader trajectoryReader = openReader(file, true);
+        RowTransform transform = RowTransform.fromProperties(trajectoryReader.header);
+        // the computed columns are bound after the ones of the file
+        InsertPlan plan = InsertPlan.fromSchema(schema,
+                transform == null ? trajectoryReader.header : transform.extend(trajectoryReader.header));
+        write(trajectoryReader, transform, plan.keyspace, plan.table, plan.query, schema);
+    }
+
+    private static TrajectoryReader openReader(String file, boolean header) {
         File f = new File(file);
         checkArgument(f.exists(), "File not found");
         String fs = System.getProperty("FS", ",");
@@ -58,10 +92,13 @@ public class SSTableWriter {
         try {
             switch (reader) {
                 case "NIO":
-                    trajectoryReader = new NIOReader(f, FS);
+                    trajectoryReader = new NIOReader(f, FS, header);
                     break;
                 case "MappedFile":
-                    trajectoryReader = new MappedReader(f, FS);
+                    trajectoryReader = new MappedReader(f, FS, header);
+                    break;
+                case "Follow":
+                    trajectoryReader = new FollowReader(f, FS, header);
                     break;
                 default:
                     throw new IllegalArgumentException("Reader " + reader + " unknown");
@@ -72,48 +109,125 @@ public class SSTableWriter {
             throw new RuntimeException("Cannot open the csv file", e);
         }
         System.out.println("Using reader " + reader);
+        return trajectoryReader;
+    }
+
+    private static void write(TrajectoryReader trajectoryReader, RowTransform transform,
+                              String keyspace, String table, String query, String schema)
+            throws InvalidRequestException, IOException {
         Config.setClientMode(true);
 
-        File outputDir = new File(keyspace + File.separator + table);
-        if (!outputDir.exists() && !outputDir.mkdirs()) {
-            throw new RuntimeException("Cannot create output directory: " + outputDir);
-        }
-        CQLSSTableWriter writer = CQLSSTableWriter.builder().inDirectory(outputDir)
-                .forTable(schema)
-                .using(query)
-                .withPartitioner(new Murmur3Partitioner())
-                .build();
-        List<ColumnSpecification> metaData;
+        boolean stream = Boolean.getBoolean("stream");
+        File streamDir = new File(System.getProperty("stream.dir", "sstables"));
+        long generationRows = Long.getLong("stream.rows", 1000000);
+        int generation = 0;
+        File outputDir = stream ? generationDir(streamDir, generation, keyspace, table)
+                : new File(keyspace + File.separator + table);
+        CQLSSTableWriter writer = newWriter(outputDir, schema, query);
+        SSTableStreamer streamer = stream ? new SSTableStreamer() : null;
+        boolean completed = false;
         try {
+            List<ColumnSpecification> metaData;
+            try {
+
+                ClientState state = ClientState.forInternalCalls();
+                ParsedStatement.Prepared prepared = QueryProcessor.getStatement(query, state);
+                CQLStatement stmt = prepared.statement;
+                stmt.validate(state);
+                metaData = prepared.boundNames;
+            } catch (Exception e) {
+                throw new RuntimeException("Impossible to get the schema", e);
+            }
+            CqlTypeConverter parser = new CqlTypeConverter(metaData);
+            int fields = parser.parsers.length - (transform == null ? 0 : transform.size());
+            checkArgument(fields > 0, "The query has no variables left for the fields after the computed columns");
+            String[] line = null;
+            Object[] binding = null;
+            long rows = 0;
+            while (trajectoryReader.hasNext()) {
+                //let's reuse the array.
+                line = line == null ? trajectoryReader.next() : trajectoryReader.next(line);
+                if (transform != null && !transform.accept(line))
+                    continue;
+
+                if (binding == null)
+                    binding = new Object[parser.parsers.length];
+
+                for (int i = 0; i < fields; i++) {
+                    binding[i] = parser.parsers[i].parse(line[i]);
+                }
+                for (int i = fields; i < binding.length; i++) {
+                    binding[i] = transform.compute(i - fields, line, parser.types[i]);
+                }
+
+                writer.addRow(binding);
+
+                if (stream && ++rows % generationRows == 0) {
+                    // the closed generation is streamed while the next one is written
+                    writer.close();
+                    submit(streamer, outputDir);
+                    outputDir = generationDir(streamDir, ++generation, keyspace, table);
+                    writer = newWriter(outputDir, schema, query);
+                }
+            }
+            writer.close();
+            if (stream) {
+                if (rows % generationRows != 0)
+                    submit(streamer, outputDir);
+                else
+                    SSTableStreamer.delete(outputDir.getParentFile().getParentFile()); // empty generation
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                /*
+                 * The streamer thread would keep the JVM alive. The generations
+                 * already closed are still streamed, the one being written is
+                 * left on disk.
+                 */
+                closeAfterFailure(writer);
+                if (streamer != null)
+                    closeAfterFailure(streamer);
+            }
+        }
+        if (stream)
+            streamer.close();
+        System.out.println("Loading completed");
+    }
 
-            ClientState state = ClientState.forInternalCalls();
-            ParsedStatement.Prepared prepared = QueryProcessor.getStatement(query, state);
-            CQLStatement stmt = prepared.statement;
-            stmt.validate(state);
-            metaData = prepared.boundNames;
+    private static void closeAfterFailure(Closeable closeable) {
+        try {
+            closeable.close();
         } catch (Exception e) {
-            throw new RuntimeException("Impossible to get the schema", e);
+            System.err.println("Cannot close " + closeable + " after the failure: " + e.getMessage());
         }
-        CqlTypeConverter parser = new CqlTypeConverter(metaData);
-        String[] line = null;
-        Object[] binding = null;
-        while (trajectoryReader.hasNext()) {
-            //let's reuse the array.
-            line = line == null ? trajectoryReader.next() : trajectoryReader.next(line);
-
-
-            if (binding == null)
-                binding = new Object[line.length];
-
-            for (int i = 0; i < parser.parsers.length; i++) {
-                binding[i] = parser.parsers[i].parse(line[i]);
-            }
+    }
 
-            writer.addRow(binding);
+    private static File generationDir(File streamDir, int generation, String keyspace, String table) {
+        // sstableloader takes keyspace and table from the last two directories
+        return new File(streamDir, generation + File.separator + keyspace + File.separator + table);
+    }
 
+    private static CQLSSTableWriter newWriter(File outputDir, String schema, String query) {
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new RuntimeException("Cannot create output directory: " + outputDir);
+        }
+        CQLSSTableWriter.Builder builder = CQLSSTableWriter.builder().inDirectory(outputDir)
+                .forTable(schema)
+                .using(query)
+                .withPartitioner(new Murmur3Partitioner());
+        MemoryBudget budget = MemoryBudget.get();
+        if (budget != null)
+            builder.withBufferSizeInMB(budget.sstableBufferMB());
+        return builder.build();
+    }
 
+    private static void submit(SSTableStreamer streamer, File outputDir) throws IOException {
+        try {
+            streamer.submit(outputDir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the streaming", e);
         }
-        writer.close();
-        System.out.println("Loading completed");
     }
 }
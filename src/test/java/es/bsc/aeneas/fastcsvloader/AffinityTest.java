@@ -0,0 +1,31 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class AffinityTest {
+
+    @Test
+    public void testParseCpuList() {
+        assertArrayEquals(new int[]{0, 1, 2, 3, 8, 10, 11}, Affinity.parseCpuList("0-3,8,10-11"));
+        assertArrayEquals(new int[]{5}, Affinity.parseCpuList("5\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        Affinity.parseCpuList("4-2");
+    }
+
+    @Test
+    public void testMissingNode() throws Exception {
+        System.setProperty("affinity.node", "100000");
+        try {
+            // not pinned, the load goes on
+            assertNull(Affinity.fromProperties());
+        } finally {
+            System.clearProperty("affinity.node");
+        }
+    }
+}
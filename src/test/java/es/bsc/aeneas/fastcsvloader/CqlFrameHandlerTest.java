@@ -0,0 +1,82 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.datastax.driver.core.BatchStatement;
+import com.google.common.util.concurrent.FutureCallback;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CqlFrameHandlerTest {
+
+    @Test
+    public void testEndOfBatchOnForeignEvent() throws Exception {
+        CqlFrameLoader loader = mock(CqlFrameLoader.class);
+        CqlFrameHandler handler = new CqlFrameHandler(loader, 2, 0);
+        handler.batchStatement = spy(new BatchStatement());
+        doReturn(1).when(handler.batchStatement).size();
+
+        handler.onEvent(new String[0], 0, false);
+        verify(loader, never()).insertBatch(any(BatchStatement.class));
+        // sequence 1 belongs to the other consumer but closes the batch
+        handler.onEvent(new String[0], 1, true);
+        verify(loader, times(1)).insertBatch(any(BatchStatement.class));
+        assertEquals(1, handler.getInserted());
+    }
+
+    @Test
+    public void testFlushOnShutdown() throws Exception {
+        CqlFrameLoader loader = mock(CqlFrameLoader.class);
+        CqlFrameHandler handler = new CqlFrameHandler(loader, 1, 0);
+        handler.batchStatement = spy(new BatchStatement());
+        doReturn(3).when(handler.batchStatement).size();
+
+        handler.onShutdown();
+        verify(loader, times(1)).insertBatch(any(BatchStatement.class));
+        assertEquals(3, handler.getInserted());
+    }
+
+    @Test
+    public void testEmptyShutdown() throws Exception {
+        CqlFrameLoader loader = mock(CqlFrameLoader.class);
+        CqlFrameHandler handler = new CqlFrameHandler(loader, 1, 0);
+
+        handler.onShutdown();
+        verify(loader, never()).insertBatch(any(BatchStatement.class));
+        assertEquals(0, handler.getInserted());
+    }
+
+    @Test
+    public void testFailedInsert() throws Exception {
+        CqlFrameLoader loader = mock(CqlFrameLoader.class);
+        doThrow(new RuntimeException("unavailable")).when(loader).insertBatch(any(BatchStatement.class));
+        CqlFrameHandler handler = new CqlFrameHandler(loader, 1, 0);
+        handler.batchStatement = spy(new BatchStatement());
+        doReturn(3).when(handler.batchStatement).size();
+
+        try {
+            handler.onEvent(new String[0], 0, true);
+        } catch (RuntimeException e) {
+            // left to the exception handler of the disruptor
+        }
+        assertEquals(3, handler.getFailed());
+        assertEquals(0, handler.getInserted());
+        // the failed rows are not sent again
+        assertEquals(0, handler.batchStatement.size());
+    }
+
+    @Test
+    public void testFailedAsyncDispatch() throws Exception {
+        CqlFrameLoader loader = mock(CqlFrameLoader.class);
+        doThrow(new InterruptedException()).when(loader).insertBatchAsync(any(BatchStatement.class), any(FutureCallback.class));
+        CqlFrameHandler handler = new CqlFrameHandler(loader, 1, 0, true);
+        handler.batchStatement = spy(new BatchStatement());
+        doReturn(2).when(handler.batchStatement).size();
+
+        handler.onShutdown();
+        assertEquals(2, handler.getFailed());
+        // not sent again
+        assertEquals(0, handler.batchStatement.size());
+    }
+}
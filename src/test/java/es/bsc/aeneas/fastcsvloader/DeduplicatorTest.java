@@ -0,0 +1,119 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeduplicatorTest {
+
+    @Test
+    public void testFingerprintTable() {
+        FingerprintTable table = new FingerprintTable(16);
+        assertEquals(-1, table.put(42, 0, 0));
+        assertEquals(0, table.put(42, 5, 0));
+        // sequence 5 is out of the window starting at 6
+        assertEquals(-1, table.put(42, 7, 6));
+        assertEquals(-1, table.put(43, 8, 6));
+    }
+
+    /**
+     * Publishes {key, version} rows and collects what the consumer receives.
+     */
+    private List<String> load(String[][] rows, int window) throws Exception {
+        return load(rows, window, null);
+    }
+
+    private List<String> load(String[][] rows, int window, RowTransform filter) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Disruptor<String[]> disruptor = new Disruptor<>(new EventFactory<String[]>() {
+            @Override
+            public String[] newInstance() {
+                return new String[2];
+            }
+        }, 16, executor, ProducerType.SINGLE, new BlockingWaitStrategy());
+        RingBuffer<String[]> ringBuffer = disruptor.getRingBuffer();
+        final Deduplicator deduplicator = new Deduplicator(ringBuffer, new int[]{0}, window, filter);
+        final List<String> received = new ArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        class Consumer implements EventHandler<String[]>, LifecycleAware {
+            @Override
+            public void onEvent(String[] event, long sequence, boolean endOfBatch) {
+                if (!deduplicator.isDuplicate(sequence))
+                    received.add(event[0] + event[1]);
+            }
+
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+
+            @Override
+            public void onShutdown() {
+            }
+        }
+        disruptor.handleEventsWith(deduplicator).handleEventsWith(new Consumer());
+        disruptor.start();
+        deduplicator.awaitStart();
+        started.await();
+        for (String[] row : rows) {
+            long sequence = ringBuffer.next();
+            ringBuffer.get(sequence)[0] = row[0];
+            ringBuffer.get(sequence)[1] = row[1];
+            ringBuffer.publish(sequence);
+        }
+        deduplicator.drain();
+        disruptor.shutdown();
+        executor.shutdown();
+        assertEquals(rows.length - received.size(), deduplicator.getDuplicates());
+        return received;
+    }
+
+    @Test
+    public void testLastVersionWritten() throws Exception {
+        String[][] rows = {{"a", "1"}, {"b", "1"}, {"a", "2"}, {"c", "1"}, {"b", "2"}, {"a", "3"}};
+        List<String> received = load(rows, 8);
+        assertEquals(3, received.size());
+        assertEquals("c1", received.get(0));
+        assertEquals("b2", received.get(1));
+        assertEquals("a3", received.get(2));
+    }
+
+    @Test
+    public void testFilteredVersion() throws Exception {
+        // the last a is filtered out by the consumers, the previous one is written
+        String[][] rows = {{"a", "1"}, {"b", "1"}, {"a", "2"}};
+        List<String> received = load(rows, 8, new RowTransform("$2 != 2", null, null));
+        assertEquals(3, received.size());
+        assertEquals("a1", received.get(0));
+    }
+
+    @Test
+    public void testOutsideWindow() throws Exception {
+        // the first a is released before the second one is read
+        String[][] rows = {{"a", "1"}, {"b", "1"}, {"c", "1"}, {"d", "1"}, {"a", "2"}};
+        List<String> received = load(rows, 2);
+        assertEquals(5, received.size());
+    }
+
+    @Test
+    public void testManyRows() throws Exception {
+        String[][] rows = new String[1000][];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = new String[]{Integer.toString(i / 2), Integer.toString(i)};
+        List<String> received = load(rows, 4);
+        assertEquals(500, received.size());
+    }
+}
@@ -0,0 +1,46 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DisruptorTunerTest {
+
+    @Test
+    public void testWaitStrategy() {
+        assertTrue(DisruptorTuner.waitStrategy("yielding") instanceof YieldingWaitStrategy);
+        assertTrue(DisruptorTuner.waitStrategy("blocking") instanceof BlockingWaitStrategy);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownWaitStrategy() {
+        DisruptorTuner.waitStrategy("spinning");
+    }
+
+    @Test
+    public void testSlowConsumers() {
+        // 1 us to read a line, 100 us to insert it: 16 consumers can't keep up
+        DisruptorTuner.Calibration c = DisruptorTuner.choose(1000, 100000, 16, 32);
+        assertEquals("blocking", c.waitStrategy);
+        // 6400 lines read while a consumer inserts a batch
+        assertEquals(16384, c.bufferSize);
+    }
+
+    @Test
+    public void testFastConsumers() {
+        DisruptorTuner.Calibration c = DisruptorTuner.choose(1000, 8000, 16, 32);
+        assertEquals("yielding", c.waitStrategy);
+        assertEquals(2048, c.bufferSize);
+        c = DisruptorTuner.choose(1000, 8000, 16, 8);
+        assertEquals("sleeping", c.waitStrategy);
+    }
+
+    @Test
+    public void testBufferSizeBounds() {
+        assertEquals(DisruptorTuner.MIN_BUFFER_SIZE, DisruptorTuner.choose(1000, 1000, 1, 4).bufferSize);
+        assertEquals(DisruptorTuner.MAX_BUFFER_SIZE, DisruptorTuner.choose(0, 1000, 1, 4).bufferSize);
+    }
+}
@@ -0,0 +1,94 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class FollowReaderTest {
+
+    private static void append(File file, String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testCompleteLines() throws Exception {
+        File file = File.createTempFile("follow", ".csv");
+        file.deleteOnExit();
+        append(file, "a,b\nc,");
+        assertEquals(4, FollowReader.completeLines(file, 0));
+        assertEquals(4, FollowReader.completeLines(file, 4));
+        append(file, "d\n");
+        assertEquals(8, FollowReader.completeLines(file, 4));
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        File file = File.createTempFile("follow", ".csv");
+        file.deleteOnExit();
+        append(file, "id,value\n1,a\n2,");
+        final FollowReader reader = new FollowReader(file, ',', true, 10, 0);
+        final BlockingQueue<String[]> lines = new LinkedBlockingQueue<>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (reader.hasNext())
+                    lines.add(reader.next());
+            }
+        });
+        t.start();
+
+        assertArrayEquals(new String[]{"1", "a"}, lines.poll(5, TimeUnit.SECONDS));
+        // the incomplete line is not read
+        assertNull(lines.poll(200, TimeUnit.MILLISECONDS));
+        append(file, "b\n3,c\n");
+        assertArrayEquals(new String[]{"2", "b"}, lines.poll(5, TimeUnit.SECONDS));
+        assertArrayEquals(new String[]{"3", "c"}, lines.poll(5, TimeUnit.SECONDS));
+
+        append(file, "4,d\n");
+        reader.stop();
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertArrayEquals(new String[]{"4", "d"}, lines.poll());
+        assertNull(lines.poll());
+    }
+
+    @Test
+    public void testIdle() throws Exception {
+        File file = File.createTempFile("follow", ".csv");
+        file.deleteOnExit();
+        append(file, "1,a\n");
+        FollowReader reader = new FollowReader(file, ',', false, 10, 100);
+        assertArrayEquals(new String[]{"1", "a"}, reader.next());
+        long start = System.currentTimeMillis();
+        assertFalse(reader.hasNext());
+        assertFalse(System.currentTimeMillis() - start < 100);
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    public void testLastLineWithoutNewline() throws Exception {
+        File file = File.createTempFile("follow", ".csv");
+        file.deleteOnExit();
+        append(file, "1,a\n2,b\n3,c");
+        FollowReader reader = new FollowReader(file, ',', false, 10, 0);
+        String[] line = new String[2];
+        reader.next(line);
+        reader.next(line);
+        reader.stop();
+        assertArrayEquals(new String[]{"3", "c"}, reader.next(line));
+        assertFalse(reader.hasNext());
+    }
+}
@@ -0,0 +1,39 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.RingBuffer;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameEventProducerTest {
+
+    @Test
+    public void testReadingFailure() throws Exception {
+        File file = File.createTempFile("producer", ".csv");
+        file.deleteOnExit();
+        // the second line has more fields than the first one
+        Files.write(file.toPath(), "1,a\n2,b,c\n3,d\n".getBytes(StandardCharsets.UTF_8));
+        RingBuffer<String[]> ringBuffer = RingBuffer.createSingleProducer(new EventFactory<String[]>() {
+            @Override
+            public String[] newInstance() {
+                return new String[2];
+            }
+        }, 8);
+        FrameEventProducer producer = new FrameEventProducer(ringBuffer, new MappedReader(file, ','));
+        producer.run();
+        assertNotNull(producer.getFailure());
+        assertEquals(1, producer.getPublished());
+        assertTrue(FrameEventProducer.isLine(ringBuffer.get(0)));
+        // published by the ring buffer, but not a line
+        assertEquals(1, ringBuffer.getCursor());
+        assertFalse(FrameEventProducer.isLine(ringBuffer.get(1)));
+    }
+}
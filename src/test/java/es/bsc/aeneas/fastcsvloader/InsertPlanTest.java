@@ -0,0 +1,41 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class InsertPlanTest {
+
+    String schema = "CREATE TABLE casedep.particle (\n" +
+            "  part_id int,\n" +
+            "  time double,\n" +
+            "  xcoord double,\n" +
+            "  PRIMARY KEY ((part_id), time)\n" +
+            ")";
+
+    @Test
+    public void testFromSchema() {
+        InsertPlan plan = InsertPlan.fromSchema(schema, new String[]{"time", "part_id", "xcoord"});
+        assertEquals("casedep", plan.keyspace);
+        assertEquals("particle", plan.table);
+        assertEquals("INSERT INTO \"casedep\".\"particle\" (\"time\",\"part_id\",\"xcoord\") VALUES (?,?,?)", plan.query);
+    }
+
+    @Test
+    public void testSplitName() {
+        assertArrayEquals(new String[]{"test", "particle"}, InsertPlan.splitName(" test.particle "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidName() {
+        InsertPlan.splitName("particle");
+    }
+
+    @Test
+    public void testQuotedNames() {
+        InsertPlan plan = InsertPlan.fromSchema(schema, new String[]{"Part_ID", "\"Time\"", "select"});
+        assertArrayEquals(new String[]{"part_id", "Time", "select"}, plan.columns);
+        assertEquals("INSERT INTO \"casedep\".\"particle\" (\"part_id\",\"Time\",\"select\") VALUES (?,?,?)", plan.query);
+    }
+}
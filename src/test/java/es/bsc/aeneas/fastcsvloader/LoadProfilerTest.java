@@ -0,0 +1,101 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import es.bsc.aeneas.fastcsvloader.distributed.ByteRange;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadProfilerTest {
+
+    private static List<ByteRange> ranges(int n) {
+        List<ByteRange> ranges = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            ranges.add(new ByteRange(i, new File("test.csv"), i * 100L, (i + 1) * 100L));
+        return ranges;
+    }
+
+    @Test
+    public void testSample() {
+        List<ByteRange> sample = LoadProfiler.sample(ranges(1000), 1);
+        assertEquals(10, sample.size());
+        assertEquals(0, sample.get(0).id);
+        assertEquals(100, sample.get(1).id);
+        // a small file is profiled by its first range
+        assertEquals(1, LoadProfiler.sample(ranges(3), 1).size());
+        assertEquals(3, LoadProfiler.sample(ranges(3), 100).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSample() {
+        LoadProfiler.sample(ranges(3), 0);
+    }
+
+    @Test
+    public void testReport() {
+        // 100 bytes/row on 10^9 bytes, 1 us to read and 6 us to convert, bind and write a row
+        LoadProfiler.Report report = new LoadProfiler.Report(1000000000L, true, 16, 32);
+        report.bytes = 100000;
+        report.rows = 1000;
+        set(report.read, 1000);
+        set(report.convert, 2000);
+        set(report.bind, 1000);
+        set(report.write, 3000);
+        report.complete();
+
+        assertEquals(10000000, report.estimatedRows);
+        assertEquals(6000, report.consumerNs());
+        // 8 consumers keep up with the reader
+        assertEquals(8, report.recommendedConsumers);
+        assertEquals(10, report.etaSeconds);
+        assertTrue(report.toString().contains("-Ddisruptor.consumers=8"));
+    }
+
+    @Test
+    public void testReportFewCores() {
+        LoadProfiler.Report report = new LoadProfiler.Report(1000000000L, false, 16, 4);
+        report.bytes = 100000;
+        report.rows = 1000;
+        set(report.read, 1000);
+        set(report.convert, 8000);
+        report.complete();
+
+        // one core is left for the reader, the consumers are the bottleneck
+        assertEquals(2, report.recommendedConsumers);
+        assertEquals(40, report.etaSeconds);
+        assertTrue(report.toString().contains("the consumers"));
+        // the write is not measured
+        assertTrue(report.toString().contains("at least 40 s"));
+        assertTrue(report.toString().contains("Recommended (lower bound"));
+    }
+
+    @Test
+    public void testReportFiltered() {
+        LoadProfiler.Report report = new LoadProfiler.Report(1000000000L, true, 16, 32);
+        report.bytes = 100000;
+        report.rows = 1000;
+        set(report.read, 1000);
+        set(report.convert, 2000);
+        // half of the lines are filtered out, bound and written
+        report.bind.rows = report.write.rows = 500;
+        report.bind.ns = 500 * 2000;
+        report.write.ns = 500 * 6000;
+        report.complete();
+
+        assertEquals(2000, report.bind.nsPerRow());
+        assertEquals(6000, report.write.nsPerRow());
+        // 2 us to convert each line, 8 us for every other one
+        assertEquals(6000, report.consumerNs());
+        assertFalse(report.toString().contains("lower bound"));
+    }
+
+    private static void set(LoadProfiler.Stage stage, long nsPerRow) {
+        stage.rows = 1000;
+        stage.ns = nsPerRow * 1000;
+    }
+}
@@ -4,9 +4,13 @@ import org.junit.Test;
 
 import java.io.File;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Objects;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -50,5 +54,33 @@ public class MappedReaderTest {
 
     }
 
+    @Test
+    public void testHeader() throws Exception {
+        File file = new File(this.getClass().getResource("test_header.csv").toURI());
+        MappedReader reader = new MappedReader(file, ',', true);
+        assertEquals(11, reader.numberOfFields);
+        assertEquals("time", reader.header[0]);
+        assertEquals("family", reader.header[10]);
+        int nline = 0;
+        while (reader.hasNext()) {
+            String[] next = reader.next();
+            assertEquals((Integer) data[nline][1], (Integer) Integer.parseInt(next[1]));
+            nline++;
+        }
+        assertEquals(10, nline);
+    }
 
+    @Test
+    public void testNoTrailingNewline() throws Exception {
+        File file = File.createTempFile("mapped", ".csv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "1,a\n2,b\n3,c".getBytes(StandardCharsets.UTF_8));
+        MappedReader reader = new MappedReader(file, ',');
+        // the array is reused, as in the ring
+        String[] line = new String[2];
+        reader.next(line);
+        reader.next(line);
+        assertArrayEquals(new String[]{"3", "c"}, reader.next(line));
+        assertFalse(reader.hasNext());
+    }
 }
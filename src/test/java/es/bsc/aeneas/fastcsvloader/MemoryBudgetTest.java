@@ -0,0 +1,81 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void testRingSize() {
+        MemoryBudget budget = new MemoryBudget(64 << 20);
+        // 16 MB for the ring
+        assertEquals(16384, budget.ringSize(16384, 1024));
+        assertEquals(16384, budget.ringSize(65536, 1024));
+        assertEquals(MemoryBudget.MIN_BUFFER_SIZE, budget.ringSize(65536, 64 << 20));
+    }
+
+    @Test
+    public void testRingSizeDedupWindow() {
+        // 1 MB for the ring, 1 KB rows: 1024 lines
+        MemoryBudget budget = new MemoryBudget(4 << 20);
+        int window = 3000;
+        // not below the next power of 2 above the window, even beyond the budget
+        assertEquals(4096, budget.ringSize(8192, 1024, Integer.highestOneBit(window) << 1));
+        assertEquals(1024, budget.ringSize(8192, 1024, MemoryBudget.MIN_BUFFER_SIZE));
+    }
+
+    @Test
+    public void testRowsBlock() throws Exception {
+        // 2 MB for the batches, 1 MB rows
+        MemoryBudget budget = new MemoryBudget(4 << 20);
+        final MemoryBudget.Rows rows = budget.rows(1 << 20);
+        assertTrue(rows.tryAcquire());
+        assertTrue(rows.tryAcquire());
+        assertFalse(rows.tryAcquire());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rows.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        t.start();
+        t.join(100);
+        assertEquals(1, acquired.getCount());
+        rows.release(1);
+        acquired.await();
+    }
+
+    @Test
+    public void testRowBiggerThanBudget() {
+        MemoryBudget budget = new MemoryBudget(4 << 20);
+        MemoryBudget.Rows rows = budget.rows(1L << 30);
+        assertTrue(rows.tryAcquire());
+        assertFalse(rows.tryAcquire());
+        rows.release(1);
+        assertTrue(rows.tryAcquire());
+    }
+
+    @Test
+    public void testAverageLineBytes() throws Exception {
+        File file = new File(this.getClass().getResource("test_header.csv").toURI());
+        assertEquals(1245 / 11, MemoryBudget.averageLineBytes(file));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmall() {
+        new MemoryBudget(1 << 20);
+    }
+}
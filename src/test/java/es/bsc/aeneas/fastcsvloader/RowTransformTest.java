@@ -0,0 +1,80 @@
+package es.bsc.aeneas.fastcsvloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowTransformTest {
+
+    String[] header = {"part_id", "par_type", "xvelo", "yvelo", "zvelo"};
+
+    @Test
+    public void testFilter() {
+        RowTransform transform = new RowTransform("par_type != 2 && xvelo >= 0", null, header);
+        assertTrue(transform.accept(new String[]{"1", "1", "0.5", "0", "0"}));
+        assertFalse(transform.accept(new String[]{"1", "2", "0.5", "0", "0"}));
+        assertFalse(transform.accept(new String[]{"1", "1", "-0.5", "0", "0"}));
+    }
+
+    @Test
+    public void testShortCircuit() {
+        // the second condition would fail parsing the field
+        RowTransform transform = new RowTransform("$2 == 1 || $1 > 0", null, null);
+        assertTrue(transform.accept(new String[]{"not a number", "1"}));
+        transform = new RowTransform("!($2 == 1) && $1 > 0", null, null);
+        assertFalse(transform.accept(new String[]{"not a number", "1"}));
+    }
+
+    @Test
+    public void testStringComparison() {
+        RowTransform transform = new RowTransform("$1 == 'fluid' || $1 != 'wall' && $2 < 1e3", null, null);
+        assertTrue(transform.accept(new String[]{"fluid", "5000"}));
+        assertTrue(transform.accept(new String[]{"solid", "10"}));
+        assertFalse(transform.accept(new String[]{"wall", "10"}));
+    }
+
+    @Test
+    public void testComputedColumns() {
+        RowTransform transform = new RowTransform(null,
+                "speed=sqrt(xvelo*xvelo + yvelo*yvelo + zvelo*zvelo); mm = -xvelo * 1000 % 7 / 2", header);
+        String[] line = {"1", "1", "3", "4", "0"};
+        assertEquals(2, transform.size());
+        assertEquals(5.0, transform.compute(0, line), 0);
+        assertEquals(-3000 % 7 / 2.0, transform.compute(1, line), 0);
+        assertEquals(5.0f, transform.compute(0, line, Float.class));
+        assertEquals(5, transform.compute(0, line, Integer.class));
+        assertTrue(transform.accept(line));
+        assertArrayEquals(new String[]{"part_id", "par_type", "xvelo", "yvelo", "zvelo", "speed", "mm"},
+                transform.extend(header));
+    }
+
+    @Test
+    public void testFunctions() {
+        RowTransform transform = new RowTransform(null, "m=max(abs($1), pow(2, 3)) - floor(.5)", null);
+        assertEquals(8.0, transform.compute(0, new String[]{"-4"}), 0);
+        assertEquals(9.0, transform.compute(0, new String[]{"-9"}), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownColumn() {
+        new RowTransform("speed > 0", null, header);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotACondition() {
+        new RowTransform("xvelo + 1", null, header);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingInput() {
+        new RowTransform(null, "s=xvelo yvelo", header);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFunction() {
+        new RowTransform(null, "s=speed(xvelo)", header);
+    }
+}
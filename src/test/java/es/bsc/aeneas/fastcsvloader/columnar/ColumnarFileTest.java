@@ -0,0 +1,98 @@
+package es.bsc.aeneas.fastcsvloader.columnar;
+
+import es.bsc.aeneas.fastcsvloader.MappedReader;
+import es.bsc.aeneas.fastcsvloader.RowTransform;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ColumnarFileTest {
+    private static final ColumnarFile.Type[] TYPES = {
+            ColumnarFile.Type.DOUBLE, ColumnarFile.Type.INT, ColumnarFile.Type.DOUBLE, ColumnarFile.Type.DOUBLE,
+            ColumnarFile.Type.FLOAT, ColumnarFile.Type.DOUBLE, ColumnarFile.Type.DOUBLE, ColumnarFile.Type.DOUBLE,
+            ColumnarFile.Type.TEXT, ColumnarFile.Type.BIGINT, ColumnarFile.Type.INT};
+
+    private File csv() throws Exception {
+        return new File(MappedReader.class.getResource("test_header.csv").toURI());
+    }
+
+    @Test
+    public void testCompile() throws Exception {
+        File output = File.createTempFile("columnar", ".col");
+        output.deleteOnExit();
+        long rows = ColumnarFile.compile(new MappedReader(csv(), ',', true), null, TYPES, output, 3);
+        assertEquals(10, rows);
+
+        try (ColumnarReader reader = new ColumnarReader(output)) {
+            assertArrayEquals(TYPES, reader.types);
+            assertEquals("time", reader.names[0]);
+            assertEquals("family", reader.names[10]);
+            assertEquals(4, reader.chunks());
+            assertEquals(10, reader.rows());
+
+            MappedReader csv = new MappedReader(csv(), ',', true);
+            for (int c = 0; c < reader.chunks(); c++) {
+                ColumnarReader.Chunk chunk = reader.chunk(c);
+                assertEquals(c == 3 ? 1 : 3, chunk.rows);
+                for (int row = 0; row < chunk.rows; row++) {
+                    String[] line = csv.next();
+                    assertEquals(Double.parseDouble(line[0]), chunk.getDouble(0, row), 0);
+                    assertEquals(Integer.parseInt(line[1]), chunk.getInt(1, row));
+                    assertEquals(Float.parseFloat(line[4]), chunk.getFloat(4, row), 0);
+                    assertEquals(Double.parseDouble(line[7]), chunk.getDouble(7, row), 0);
+                    assertEquals(line[8], chunk.getString(8, row));
+                    assertEquals(Long.parseLong(line[9]), chunk.getLong(9, row));
+                    assertEquals(Integer.parseInt(line[10]), chunk.get(10, row));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTransform() throws Exception {
+        File output = File.createTempFile("columnar", ".col");
+        output.deleteOnExit();
+        MappedReader csv = new MappedReader(csv(), ',', true);
+        RowTransform transform = new RowTransform("part_id % 2 == 0", "twice=part_id*2", csv.header);
+        // only the first two fields are stored, followed by the computed one
+        ColumnarFile.Type[] types = {ColumnarFile.Type.TEXT, ColumnarFile.Type.INT, ColumnarFile.Type.BIGINT};
+        long rows = ColumnarFile.compile(csv, transform, types, output, 100);
+        assertEquals(5, rows);
+
+        try (ColumnarReader reader = new ColumnarReader(output)) {
+            assertArrayEquals(new String[]{"time", "part_id", "twice"}, reader.names);
+            assertEquals(1, reader.chunks());
+            ColumnarReader.Chunk chunk = reader.chunk(0);
+            assertEquals(5, chunk.rows);
+            for (int row = 0; row < chunk.rows; row++) {
+                assertEquals("0.00016", chunk.getString(0, row));
+                assertEquals(11650 + 2 * row, chunk.getInt(1, row));
+                assertEquals(2L * (11650 + 2 * row), chunk.getLong(2, row));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetterRejectsText() {
+        ColumnarLoader.setter(ColumnarFile.Type.TEXT, Double.class, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetterRejectsNarrowing() {
+        ColumnarLoader.setter(ColumnarFile.Type.DOUBLE, Integer.class, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetterRejectsInexact() {
+        // 16777217 has no float
+        ColumnarLoader.setter(ColumnarFile.Type.INT, Float.class, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotColumnar() throws Exception {
+        new ColumnarReader(csv()).close();
+    }
+}
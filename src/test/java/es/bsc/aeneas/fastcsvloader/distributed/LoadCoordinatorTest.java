@@ -0,0 +1,92 @@
+package es.bsc.aeneas.fastcsvloader.distributed;
+
+import es.bsc.aeneas.fastcsvloader.MappedReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoadCoordinatorTest {
+
+    private File resource(String name) throws Exception {
+        return new File(MappedReader.class.getResource(name).toURI());
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        File file = resource("test.csv");
+        // about 3 lines per range
+        List<ByteRange> ranges = LoadCoordinator.split(Collections.singletonList(file), 300, false);
+        assertEquals(0, ranges.get(0).start);
+        assertEquals(file.length(), ranges.get(ranges.size() - 1).end);
+        int lines = 0;
+        long previous = 0;
+        for (ByteRange range : ranges) {
+            assertEquals(previous, range.start);
+            previous = range.end;
+            MappedReader reader = new MappedReader(file, ',', false, range.start, range.end);
+            while (reader.hasNext()) {
+                String[] line = reader.next();
+                // every line complete, starting with the time
+                assertEquals("0.00016", line[0]);
+                assertEquals("2", line[10]);
+                lines++;
+            }
+        }
+        assertEquals(10, lines);
+    }
+
+    @Test
+    public void testSplitHeader() throws Exception {
+        File file = resource("test_header.csv");
+        List<ByteRange> ranges = LoadCoordinator.split(Collections.singletonList(file), 1 << 20, true);
+        assertEquals(1, ranges.size());
+        assertEquals(Files.readAllLines(file.toPath()).get(0).length() + 1, ranges.get(0).start);
+        // as the worker reads it with an INSERT query, with no header
+        MappedReader reader = new MappedReader(file, ',', false, ranges.get(0).start, ranges.get(0).end);
+        int lines = 0;
+        while (reader.hasNext()) {
+            assertEquals("0.00016", reader.next()[0]);
+            lines++;
+        }
+        assertEquals(10, lines);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSplitDifferentHeaders() throws Exception {
+        LoadCoordinator.split(Arrays.asList(resource("test_header.csv"), resource("test.csv")), 1 << 20, true);
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        File dir = Files.createTempDirectory("coordinator").toFile();
+        File file = resource("test.csv");
+        List<ByteRange> ranges = LoadCoordinator.split(Collections.singletonList(file), 500, false);
+        LoadCoordinator.plan(dir, ranges);
+        List<ByteRange> read = LoadCoordinator.readPlan(dir);
+        assertEquals(ranges.size(), read.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(ranges.get(i).start, read.get(i).start);
+            assertEquals(ranges.get(i).end, read.get(i).end);
+            assertEquals(file.getAbsolutePath(), read.get(i).file.getPath());
+        }
+    }
+
+    @Test
+    public void testMonitorEndsWithFailedRanges() throws Exception {
+        File dir = Files.createTempDirectory("coordinator").toFile();
+        List<ByteRange> ranges = LoadCoordinator.split(Collections.singletonList(resource("test.csv")), 500, false);
+        LoadCoordinator.plan(dir, ranges);
+        for (int i = 0; i < ranges.size(); i++) {
+            File file = i == 0 ? LoadCoordinator.failedFile(dir, ranges.get(i)) : LoadCoordinator.doneFile(dir, ranges.get(i));
+            Files.write(file.toPath(), "rows=1\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        assertEquals(1, LoadCoordinator.monitor(dir, 10));
+    }
+}
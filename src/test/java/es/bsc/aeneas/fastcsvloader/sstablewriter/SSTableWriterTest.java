@@ -7,6 +7,8 @@ import org.junit.Test;
 import java.io.IOException;
 import org.apache.commons.io.FileUtils;
 
+import static org.junit.Assert.assertEquals;
+
 
 public class SSTableWriterTest {
     @Test
@@ -74,4 +76,44 @@ public class SSTableWriterTest {
         /*SSTableWriter.write("/home/ccugnasc/Desktop/particleSintenticResults_60G.csv",query,schema);*/
         System.out.print("Inserted file in "+(System.currentTimeMillis()-start)/1000+" seconds");
     }
+
+    /**
+     * Needs a local Cassandra node with the casedep.particle table.
+     */
+    @Test
+    public void testStreamSmall() throws InvalidRequestException, IOException {
+        String query = "INSERT INTO casedep.particle(" +
+                "time,part_id," +
+                "xcoord ,ycoord,zcoord," +
+                "xvelo,yvelo,zvelo," +
+                "par_type,subdom,family )" +
+                " VALUES (?,?,?,?,?,?,?,?,?,?,?)";
+        String schema = "CREATE TABLE casedep.particle (\n" +
+                "  part_id int,\n" +
+                "  time double,\n" +
+                "  block text,\n" +
+                "  family int,\n" +
+                "  par_type int,\n" +
+                "  subdom int,\n" +
+                "  xcoord double,\n" +
+                "  xvelo double,\n" +
+                "  ycoord double,\n" +
+                "  yvelo double,\n" +
+                "  zcoord double,\n" +
+                "  zvelo double,\n" +
+                "  PRIMARY KEY ((part_id), time)\n" +
+                ")";
+        File dir = new File("sstables");
+        FileUtils.deleteDirectory(dir);
+        System.setProperty("stream", "true");
+        System.setProperty("stream.rows", "4");
+        try {
+            SSTableWriter.write("src/test/resources/es/bsc/aeneas/fastcsvloader/test.csv", query, schema);
+        } finally {
+            System.clearProperty("stream");
+            System.clearProperty("stream.rows");
+        }
+        // every generation streamed and deleted
+        assertEquals(0, dir.list().length);
+    }
 }